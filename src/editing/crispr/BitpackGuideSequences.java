@@ -18,6 +18,8 @@ import broad.core.sequence.Sequence;
  * @author engreitz
  * Use DumpAllGuideSequences to make a BED file first, then bitpack with this class.
  * Order is very important - do not change the BED files or bitpack after running this class.
+ * With INDEX=true the output also carries the coordinates of each site (see OffTargetIndexWriter),
+ * so it no longer depends on the BED file.
  * Does not deal with N's ... these get encoded as A's
  */
 public class BitpackGuideSequences extends CommandLineProgram {
@@ -34,6 +36,9 @@ public class BitpackGuideSequences extends CommandLineProgram {
 	@Option(doc="Output file with 20mer guide sequences, one per line")
 	public File OUTPUT;
 	
+	@Option(doc="Write an off target index with a header and the coordinates of each site instead of bare sequences", optional=true)
+	public Boolean INDEX = false;
+	
 	/**
 	 * Stock main method.
 	 *
@@ -51,6 +56,22 @@ public class BitpackGuideSequences extends CommandLineProgram {
         try {
         	
         	CloseableIterator<Annotation> itr = AnnotationFileReader.read(BED, Annotation.class, new BasicAnnotation.Factory());
+        	if (INDEX) {
+        		OffTargetIndexWriter writer = new OffTargetIndexWriter(OUTPUT, 20);
+        		try {
+        			while (itr.hasNext()) {
+        				Annotation next = itr.next();
+        				writer.add(next.getReferenceName(), next.getStart(), next.getOrientation(), next.getName());
+        			}
+        			writer.close();
+        		} catch (Exception e) {
+        			writer.abort();
+        			throw e;
+        		}
+        		log.info("Wrote " + writer.getNumRecords() + " sites to " + OUTPUT);
+        		return 0;
+        	}
+        	
            	BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(OUTPUT));
 			
         	while (itr.hasNext()) {
@@ -89,6 +110,37 @@ public class BitpackGuideSequences extends CommandLineProgram {
     }
     
     
+    /**
+     * Pack a sequence of at most 32 bases into a long, with the same layout as sequenceToBits:
+     * base i in bits 2i and 2i+1, so a 20mer is the little-endian value of its 5 bitpacked bytes
+     * @param seq Sequence
+     * @return Packed sequence
+     */
+    public static long sequenceToLong(String seq) {
+    	if (seq.length() > 32) {
+    		throw new IllegalArgumentException("Can't pack more than 32 bases into a long: " + seq);
+    	}
+    	long packed = 0;
+    	for (int i = 0; i < seq.length(); i++) {
+    		packed |= ((long) baseToBits(seq.charAt(i))) << (2*i);
+    	}
+    	return packed;
+    }
+    
+    /**
+     * @param base Base, either case
+     * @return 2-bit code; anything other than C, G or T is encoded as A
+     */
+    public static byte baseToBits(char base) {
+    	switch (base) {
+    	case 'C': case 'c': return C;
+    	case 'G': case 'g': return G;
+    	case 'T': case 't': return T;
+    	default: return A;
+    	}
+    }
+    
+    
     public static String bytesToSequence(byte[] bytes, int n) {
     	char[] chars = new char[n];
     	for (int i = 0; i < n*2; i += 2) {
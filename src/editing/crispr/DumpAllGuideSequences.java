@@ -2,14 +2,20 @@ package editing.crispr;
 
 import java.io.*;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.sf.picard.cmdline.CommandLineProgram;
 import net.sf.picard.cmdline.Option;
 import net.sf.picard.io.IoUtil;
 import net.sf.picard.util.Log;
-import broad.core.motif.SequenceMotif;
+import net.sf.samtools.util.CloseableIterator;
+import nextgen.core.annotation.Annotation;
+import nextgen.core.annotation.Annotation.Strand;
+import nextgen.core.annotation.AnnotationFileReader;
+import nextgen.core.annotation.BasicAnnotation;
 import broad.core.sequence.FastaSequenceIO;
 import broad.core.sequence.Sequence;
 import broad.core.sequence.SequenceRegion;
@@ -19,22 +25,43 @@ import broad.core.sequence.SequenceRegion;
  * This class dumps all guide sequences in a given FASTA file to a file.  Build
  * to be completely lightweight, since I'm using this to dump all guides in the
  * entire genome.
- * 
- * At the moment, this differs from crispr.mit.edu in that it dumps only NGGs
- * and not also NAGs.
+ *
+ * Chromosomes (or regions) are scanned in parallel in chunks of CHUNK_SIZE positions, and written
+ * in the same order as a serial scan: for each chromosome all positive strand sites
+ * followed by all negative strand sites.  Chunks are written as they finish and only a
+ * few per thread are in flight, so memory for sites does not grow with the genome.
+ * By default only NGGs are dumped, as before; set INCLUDE_NAG to also dump NAGs as crispr.mit.edu does.
+ *
+ * INDEX writes an off target index (see OffTargetIndexWriter) directly, so BitpackGuideSequences
+ * does not need to be run on the BED file.
  */
 public class DumpAllGuideSequences extends CommandLineProgram {
     private static final Log log = Log.getInstance(DumpAllGuideSequences.class);
 
+    private static final int SITE_LENGTH = 23;
+    private static final byte NEGATIVE = 0x1;
+    private static final byte NAG = 0x2;
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int CHUNKS_IN_FLIGHT_PER_THREAD = 2;
+
 	@Option(doc="Genome fasta file")
 	public File GENOME_FASTA = new File("/seq/lincRNA/data/mm9.nonrandom.fa");
-	
+
 	@Option(doc="Bed file containing subsets of genome to output", optional=true)
 	public File REGIONS = null;
-	
-	@Option(doc="Output file with 20mer guide sequences, one per line")
-	public File OUTPUT;
-	
+
+	@Option(doc="Output file with 20mer guide sequences, one per line", optional=true)
+	public File OUTPUT = null;
+
+	@Option(doc="Off target index to write alongside or instead of the bed file", optional=true)
+	public File INDEX = null;
+
+	@Option(doc="Also output sites with NAG PAMs", optional=true)
+	public Boolean INCLUDE_NAG = false;
+
+	@Option(doc="Number of chromosomes or regions to scan at once", optional=true)
+	public Integer NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
 	/**
 	 * Stock main method.
 	 *
@@ -43,53 +70,218 @@ public class DumpAllGuideSequences extends CommandLineProgram {
 	public static void main(final String[] args) {
 		System.exit(new DumpAllGuideSequences().instanceMain(args));
 	}
-	
-	
+
+
     @Override
     protected int doWork() {
         IoUtil.assertFileIsReadable(GENOME_FASTA);
-        IoUtil.assertFileIsWritable(OUTPUT);
-        
+        if (OUTPUT == null && INDEX == null) {
+        	log.error("Need OUTPUT, INDEX or both");
+        	return 1;
+        }
+        if (OUTPUT != null) IoUtil.assertFileIsWritable(OUTPUT);
+        if (INDEX != null) IoUtil.assertFileIsWritable(INDEX);
+
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        BufferedWriter bw = null;
+        OffTargetIndexWriter index = null;
         try {
-        	BufferedWriter bw = new BufferedWriter(new FileWriter(OUTPUT));
 			Map<String,Sequence> chrs = FastaSequenceIO.getChrSequencesFromFasta(GENOME_FASTA.getAbsolutePath());
-			
+
+			List<Sequence> seqs = new ArrayList<Sequence>();
+			List<int[]> ranges = new ArrayList<int[]>();
 			if (REGIONS != null) {
-				// Not implemented yet
+				addRegions(chrs, seqs, ranges);
 			} else {
 				for (String chr : chrs.keySet()) {
-					log.info("Starting " + chr);
 					Sequence seq = chrs.get(chr);
-					outputAll(seq, bw);
+					seqs.add(seq);
+					ranges.add(new int[] {0, seq.getLength()});
+				}
+			}
+
+			// Chunks in write order: for each range, the positive strand chunks, then the negative strand chunks
+			List<Scanner> chunks = new ArrayList<Scanner>();
+			for (int i = 0; i < seqs.size(); i++) {
+				Sequence seq = seqs.get(i);
+				// Same bound as the original serial scan, so default output is unchanged
+				int from = Math.max(ranges.get(i)[0], 0);
+				int end = Math.min(ranges.get(i)[1] - SITE_LENGTH + 1, seq.getSequenceBases().length() - SITE_LENGTH);
+				for (int strand = 0; strand < 2; strand++) {
+					for (int start = from; start < end; start += CHUNK_SIZE) {
+						chunks.add(new Scanner(seq, start, Math.min(start + CHUNK_SIZE, end), strand == 1, strand == 1 && start + CHUNK_SIZE >= end));
+					}
 				}
 			}
-			bw.close();
+
+			bw = OUTPUT == null ? null : new BufferedWriter(new FileWriter(OUTPUT));
+			index = INDEX == null ? null : new OffTargetIndexWriter(INDEX, SITE_LENGTH - 3);
+			LinkedList<Future<SiteBuffer>> scans = new LinkedList<Future<SiteBuffer>>();
+			int maxInFlight = CHUNKS_IN_FLIGHT_PER_THREAD * NUM_THREADS.intValue();
+			int nextChunk = 0;
+			long total = 0;
+			for (int i = 0; i < chunks.size(); i++) {
+				while (nextChunk < chunks.size() && scans.size() < maxInFlight) {
+					scans.add(executor.submit(chunks.get(nextChunk)));
+					nextChunk++;
+				}
+				// Write in order as each scan finishes; later scans keep running meanwhile
+				SiteBuffer sites = scans.removeFirst().get();
+				Scanner chunk = chunks.get(i);
+				chunks.set(i, null);
+				write(chunk.seq, sites, bw, index);
+				total += sites.size;
+				if (chunk.lastOfRange) {
+					log.info("Finished " + chunk.seq.getId() + " up to " + chunk.to + " (" + total + " sites so far)");
+				}
+			}
+			if (bw != null) bw.close();
+			bw = null;
+			if (index != null) index.close();
+			index = null;
         } catch (Exception e) {
         	log.error(e);
+        	return 1;
+        } finally {
+        	executor.shutdownNow();
+        	if (bw != null) {
+        		try {
+        			bw.close();
+        		} catch (IOException e) {
+        			log.error(e);
+        		}
+        	}
+        	if (index != null) index.abort();
         }
 
         return 0;
     }
-    
-    
-    private void outputAll(Sequence seq, BufferedWriter bw) throws IOException {
-    	seq.setSequenceBases(seq.getSequenceBases().toUpperCase());
-		Matcher m = Pattern.compile(".{21}GG").matcher(seq.getSequenceBases());
-		for (int i = 0; i < seq.getLength() - 23; i++) {
-			m.region(i,i+23);
-			if (m.find()) {
-				bw.write(seq.getId() + "\t" + i + "\t" + (i+23) + "\t" + m.group() + "\t0\t+");
-				bw.newLine();
-			}
-		}
-
-		m = Pattern.compile("CC.{21}").matcher(seq.getSequenceBases());
-		for (int i = 0; i < seq.getLength() - 23; i++) {
-			m.region(i,i+23);
-			if (m.find()) {
-				bw.write(seq.getId() + "\t" + i + "\t" + (i+23) + "\t" + SequenceRegion.reverseSequence(m.group()) + "\t0\t-");
-				bw.newLine();
-			}
-		}
+
+
+    /**
+     * Read REGIONS, merging overlapping regions on each chromosome so no site is output twice
+     */
+    private void addRegions(Map<String,Sequence> chrs, List<Sequence> seqs, List<int[]> ranges) throws IOException {
+    	Map<String, List<int[]>> regionsByChr = new LinkedHashMap<String, List<int[]>>();
+    	CloseableIterator<Annotation> itr = AnnotationFileReader.read(REGIONS, Annotation.class, new BasicAnnotation.Factory());
+    	while (itr.hasNext()) {
+    		Annotation region = itr.next();
+    		if (!chrs.containsKey(region.getReferenceName())) {
+    			log.warn("Skipping region on " + region.getReferenceName() + ", which is not in " + GENOME_FASTA);
+    			continue;
+    		}
+    		if (!regionsByChr.containsKey(region.getReferenceName())) {
+    			regionsByChr.put(region.getReferenceName(), new ArrayList<int[]>());
+    		}
+    		regionsByChr.get(region.getReferenceName()).add(new int[] {region.getStart(), region.getEnd()});
+    	}
+    	itr.close();
+
+    	for (String chr : regionsByChr.keySet()) {
+    		List<int[]> regions = regionsByChr.get(chr);
+    		Collections.sort(regions, new Comparator<int[]>() {
+    			@Override
+    			public int compare(int[] a, int[] b) {
+    				return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+    			}
+    		});
+    		int[] current = null;
+    		for (int[] region : regions) {
+    			if (current != null && region[0] <= current[1]) {
+    				current[1] = Math.max(current[1], region[1]);
+    			} else {
+    				current = region;
+    				seqs.add(chrs.get(chr));
+    				ranges.add(current);
+    			}
+    		}
+    	}
+    }
+
+
+    private static void write(Sequence seq, SiteBuffer sites, BufferedWriter bw, OffTargetIndexWriter index) throws IOException {
+    	String bases = seq.getSequenceBases();
+    	for (int j = 0; j < sites.size; j++) {
+    		int i = sites.starts[j];
+    		boolean negative = (sites.kinds[j] & NEGATIVE) != 0;
+    		String site = bases.substring(i, i + SITE_LENGTH).toUpperCase();
+    		if (negative) site = SequenceRegion.reverseSequence(site);
+    		if (bw != null) {
+    			bw.write(seq.getId() + "\t" + i + "\t" + (i+SITE_LENGTH) + "\t" + site + "\t0\t" + (negative ? "-" : "+"));
+    			bw.newLine();
+    		}
+    		if (index != null) {
+    			index.add(seq.getId(), i, negative ? Strand.NEGATIVE : Strand.POSITIVE, site);
+    		}
+    	}
+    }
+
+
+    /**
+     * Site starts and kinds found in one scan
+     */
+    private static class SiteBuffer {
+    	int[] starts = new int[1024];
+    	byte[] kinds = new byte[1024];
+    	int size = 0;
+
+    	void add(int start, byte kind) {
+    		if (size == starts.length) {
+    			starts = Arrays.copyOf(starts, 2 * size);
+    			kinds = Arrays.copyOf(kinds, 2 * size);
+    		}
+    		starts[size] = start;
+    		kinds[size] = kind;
+    		size++;
+    	}
+    }
+
+
+    /**
+     * Single pass over site starts in [from, to) of a sequence, collecting the sites on one strand
+     */
+    private class Scanner implements Callable<SiteBuffer> {
+    	private Sequence seq;
+    	private int from, to;
+    	private boolean negative;
+    	private boolean lastOfRange;
+
+    	Scanner(Sequence seq, int from, int to, boolean negative, boolean lastOfRange) {
+    		this.seq = seq;
+    		this.from = from;
+    		this.to = to;
+    		this.negative = negative;
+    		this.lastOfRange = lastOfRange;
+    	}
+
+    	@Override
+    	public SiteBuffer call() {
+    		String bases = seq.getSequenceBases();
+    		SiteBuffer rtrn = new SiteBuffer();
+    		boolean includeNAG = INCLUDE_NAG.booleanValue();
+    		for (int i = from; i < to; i++) {
+    			if (!negative) {
+    				// Positive strand: 21 bases then GG (or AG)
+    				if (upper(bases.charAt(i + 22)) == 'G') {
+    					char c = upper(bases.charAt(i + 21));
+    					if (c == 'G') rtrn.add(i, (byte) 0);
+    					else if (c == 'A' && includeNAG) rtrn.add(i, NAG);
+    				}
+    			} else {
+    				// Negative strand: CC (or CT) then 21 bases
+    				if (upper(bases.charAt(i)) == 'C') {
+    					char c = upper(bases.charAt(i + 1));
+    					if (c == 'C') rtrn.add(i, NEGATIVE);
+    					else if (c == 'T' && includeNAG) rtrn.add(i, (byte) (NEGATIVE | NAG));
+    				}
+    			}
+    		}
+    		return rtrn;
+    	}
+    }
+
+
+    private static char upper(char c) {
+    	return (c >= 'a' && c <= 'z') ? (char) (c - 32) : c;
     }
 }
@@ -3,6 +3,8 @@ package editing.crispr;
 import java.io.File;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
 
 import editing.crispr.score.*;
 import editing.crispr.score.GuideOffTargetScore.OffTargetHits;
@@ -28,10 +30,10 @@ public class FindOffTargetHits extends CommandLineProgram {
 	@Option(doc="Bed file containing guides")
 	public File GUIDES;
 
-	@Option(doc="Bitpacked file containing off target sites")
+	@Option(doc="Off target index containing off target sites (see BitpackGuideSequences INDEX=true), or a bitpacked file together with OFF_TARGETS")
 	public File OFF_TARGET_BITS;
 	
-	@Option(doc="BED file containing off target sites (23-mer sequence in name column)", optional=true)
+	@Option(doc="BED file containing off target sites (23-mer sequence in name column); only needed if OFF_TARGET_BITS has no coordinates", optional=true)
 	public File OFF_TARGETS = null;
 	
 	@Option(doc="Output file")
@@ -51,21 +53,25 @@ public class FindOffTargetHits extends CommandLineProgram {
     protected int doWork() {
         IoUtil.assertFileIsReadable(GUIDES);
         IoUtil.assertFileIsReadable(OFF_TARGET_BITS);
-        IoUtil.assertFileIsReadable(OFF_TARGETS);
+        if (OFF_TARGETS != null) IoUtil.assertFileIsReadable(OFF_TARGETS);
         IoUtil.assertFileIsWritable(OUTPUT);
 
         try {
         	
         	AnnotationList<GuideRNA> guides = AnnotationFileReader.load(GUIDES, GuideRNA.class, new GuideRNA.Factory());
-        	GuideOffTargetScore scorer = new GuideOffTargetScore(OFF_TARGET_BITS, OFF_TARGETS);
+        	GuideOffTargetScore scorer = new GuideOffTargetScore(OFF_TARGET_BITS, null, OFF_TARGETS);
         	BufferedWriter writer = new BufferedWriter(new FileWriter(OUTPUT));
         	
+        	List<String> sequences = new ArrayList<String>();
+        	for (GuideRNA guide : guides) {
+        		sequences.add(guide.getSequenceString());
+        	}
+        	List<OffTargetHits> allHits = scorer.getOffTargetHits(sequences, 1);
+        	scorer.annotateOffTargetHits(allHits);
+        	
+        	int i = 0;
 			for (GuideRNA guide : guides) {
-				OffTargetHits hits = scorer.getOffTargetHits(guide.getSequenceString());
-				//log.info("Found " + hits.offTargetIndices.size() + " off target hits.  Score = " + hits.score + ". Annotating ...");
-				scorer.annotateOffTargetHits(hits);
-				//log.info("length of offTargetHits is " + hits.offTargetHits.size());
-				
+				OffTargetHits hits = allHits.get(i++);
 				for (GuideRNA offTargetHit : hits.offTargetHits) {
 					writer.write(guide.getSequenceWithPAM().getSequenceBases() + "\t" + offTargetHit.toBedWithSequence() +"\n");
 				}
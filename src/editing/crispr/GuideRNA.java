@@ -1,8 +1,8 @@
 package editing.crispr;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
 
@@ -24,7 +24,11 @@ public class GuideRNA extends BasicAnnotation {
 	 */
 	private static final long serialVersionUID = 1L;
 	public static Logger logger = Logger.getLogger(GuideRNA.class.getName());
-	private Sequence sequenceWithoutPAM, sequenceWithPAM;
+	public static final int PAM_LENGTH = 3;
+	/**
+	 * Sequence including PAM in guide orientation; Sequence objects and strings are made on request
+	 */
+	private PackedGuideSequence sequenceWithPAM;
 	private Gene target = null;
 	public static boolean ALLOW_NAG_AS_PAM = false;
 
@@ -43,32 +47,16 @@ public class GuideRNA extends BasicAnnotation {
 		setNameFromTarget();
 		target = targetGene;
 		
-		int startWithoutPAM;
-		int startWithPAM;
-		int endWithoutPAM;
-		int endWithPAM;
-		Strand strand;
-		
-		// Validate
-		strand = orientation;
-		if(strand.equals(Strand.POSITIVE)) {
-			startWithoutPAM = getStart();
-			startWithPAM = startWithoutPAM;
-			endWithoutPAM = getEnd();
-			endWithPAM = endWithoutPAM + 3;
-		} else {
-			startWithoutPAM = getStart();
-			startWithPAM = getStart() - 3;
-			endWithoutPAM = getEnd();
-			endWithPAM = getEnd();
+		// The guide without PAM is the first bases of the sequence with PAM, so fetch only that
+		Strand strand = orientation;
+		int startWithPAM = strand.equals(Strand.POSITIVE) ? getStart() : getStart() - PAM_LENGTH;
+		int endWithPAM = strand.equals(Strand.POSITIVE) ? getEnd() + PAM_LENGTH : getEnd();
+		String longSeq = chromosome.getSubSequence("", startWithPAM, endWithPAM).getSequenceBases().toUpperCase();
+		if(!strand.equals(Strand.POSITIVE)) {
+			longSeq = Sequence.reverseSequence(longSeq);
 		}
-		Sequence shortSeq = chromosome.getSubSequence("", startWithoutPAM, endWithoutPAM);
-		shortSeq.setSequenceBases(shortSeq.getSequenceBases().toUpperCase());
-		Sequence longSeq = chromosome.getSubSequence("", startWithPAM, endWithPAM);
-		longSeq.setSequenceBases(longSeq.getSequenceBases().toUpperCase());
-		sequenceWithoutPAM = strand.equals(Strand.POSITIVE) ? shortSeq : Sequence.reverseSequence(shortSeq);
-		sequenceWithPAM = strand.equals(Strand.POSITIVE) ? longSeq : Sequence.reverseSequence(longSeq);
-		validateSequenceWithPAM(sequenceWithPAM);
+		validateSequenceWithPAM(longSeq);
+		sequenceWithPAM = PackedGuideSequence.pack(longSeq);
 	}
 
 	/**
@@ -80,16 +68,18 @@ public class GuideRNA extends BasicAnnotation {
 		validateStartEnd(getStart(), getEnd());
 		validateStrand(getOrientation());
 		setNameFromTarget();
-		sequenceWithoutPAM = new Sequence(getName());
-		sequenceWithoutPAM.setSequenceBases(sequenceIncludingPAM.substring(0,sequenceIncludingPAM.length() - 3));
-		sequenceWithoutPAM.setForwardStrand(getOrientation() == Strand.POSITIVE);
-		
-		sequenceWithPAM = new Sequence(getName());
-		sequenceWithPAM.setSequenceBases(sequenceIncludingPAM);
-		sequenceWithPAM.setForwardStrand(getOrientation() == Strand.POSITIVE);
-		
-		validateSequenceWithPAM(sequenceWithPAM);
-		
+		validateSequenceWithPAM(sequenceIncludingPAM);
+		sequenceWithPAM = PackedGuideSequence.pack(sequenceIncludingPAM);
+	}
+	
+	/**
+	 * @param targetGene Target gene
+	 * @param a The annotation of the guide RNA itself without PAM sequence
+	 * @param sequenceIncludingPAM Sequence of the guide RNA with PAM
+	 */
+	public GuideRNA(Gene targetGene, Annotation a, String sequenceIncludingPAM) {
+		this(a, sequenceIncludingPAM);
+		target = targetGene;
 	}
 	
 	
@@ -107,19 +97,33 @@ public class GuideRNA extends BasicAnnotation {
 	}
 	
 	public String getSequenceString() {
-		return sequenceWithoutPAM.getSequenceBases();
+		return sequenceWithPAM.prefix(sequenceWithPAM.length() - PAM_LENGTH);
 	}
 	
 	public Sequence getSequence() {
-		return sequenceWithoutPAM;
+		return toSequence(getSequenceString());
 	}
 	
 	public Sequence getSequenceWithPAM() {
-		return sequenceWithPAM;
+		return toSequence(getSequenceStringWithPAM());
 	}
 	
 	public String getSequenceStringWithPAM() {
-		return getSequenceWithPAM().getSequenceBases();
+		return sequenceWithPAM.toString();
+	}
+	
+	/**
+	 * @return The sequence including PAM in packed form
+	 */
+	public PackedGuideSequence getPackedSequenceWithPAM() {
+		return sequenceWithPAM;
+	}
+	
+	private Sequence toSequence(String bases) {
+		Sequence rtrn = new Sequence(getName());
+		rtrn.setSequenceBases(bases);
+		rtrn.setForwardStrand(getOrientation() == Strand.POSITIVE);
+		return rtrn;
 	}
 	
 	public Gene getTargetGene() {
@@ -150,13 +154,12 @@ public class GuideRNA extends BasicAnnotation {
 		//logger.debug("");
 		ALLOW_NAG_AS_PAM = allowNAG;
 		Collection<GuideRNA> rtrn = new ArrayList<GuideRNA>();
-		Collection<Annotation> pams = findAllNGGs(chr, start, end);
-		if(ALLOW_NAG_AS_PAM) {
-			pams.addAll(findAllNAGs(chr, start, end));
-		}
-		for(Annotation pam : pams) {
+		int[] pams = findAllPAMs(chr.getSubSequence("", start, end).getSequenceBases(), allowNAG);
+		for(int pam : pams) {
+			int pamStart = start + (pam >>> 1);
+			Strand strand = (pam & 1) == 0 ? Strand.POSITIVE : Strand.NEGATIVE;
 			for(int len = minLen; len <= maxLen; len++) {
-				GuideRNA g = adjacentGuideRNA(chr, start, end, len, pam, targetGene);
+				GuideRNA g = adjacentGuideRNA(chr, start, end, len, pamStart, strand, targetGene);
 				if(g != null) {
 					//logger.debug("Added " + g.toString());
 					rtrn.add(g);
@@ -167,7 +170,7 @@ public class GuideRNA extends BasicAnnotation {
 	}
 	
 	public String toString() {
-		return getReferenceName() + ":" + getStart() + "-" + getEnd() + ":" + getStrand().toString() + ":" + sequenceWithoutPAM.getSequenceBases();
+		return getReferenceName() + ":" + getStart() + "-" + getEnd() + ":" + getStrand().toString() + ":" + getSequenceString();
 	}
 	
 	/**
@@ -176,371 +179,64 @@ public class GuideRNA extends BasicAnnotation {
 	 * @param windowStart Window start
 	 * @param windowEnd Position after last position of window
 	 * @param length Length of guide RNA sequence without PAM
-	 * @param pam Oriented PAM location
+	 * @param pamStart First position of the PAM on the chromosome
+	 * @param strand Strand of the PAM
 	 * @param targetGene Target gene
 	 * @return The guide RNA or null if not fully contained in window
 	 */
-	private static GuideRNA adjacentGuideRNA(Sequence windowChr, int windowStart, int windowEnd, int length, Annotation pam, Gene targetGene) {
-		validatePAM(windowChr, pam);
-		//logger.debug("Getting guide RNA adjacent to " + pam.toUCSC() + ":" + pam.getOrientation().toString());
-		if(pam.getOrientation().equals(Strand.POSITIVE)) {
-			if(pam.getStart() - windowStart < length) {
+	private static GuideRNA adjacentGuideRNA(Sequence windowChr, int windowStart, int windowEnd, int length, int pamStart, Strand strand, Gene targetGene) {
+		//logger.debug("Getting guide RNA adjacent to PAM at " + pamStart + ":" + strand.toString());
+		if(strand.equals(Strand.POSITIVE)) {
+			if(pamStart - windowStart < length) {
 				// Guide RNA cannot be fully contained in window
-				logger.debug("Guide RNA neighboring " + pam.toUCSC() +" not fully contained in " + windowChr.getId() + ":" + windowStart + "-" + windowEnd);
+				logger.debug("Guide RNA neighboring " + windowChr.getId() + ":" + pamStart + "-" + (pamStart + 3) +" not fully contained in " + windowChr.getId() + ":" + windowStart + "-" + windowEnd);
 				return null;
 			}
-			GuideRNA rtrn = new GuideRNA(targetGene, windowChr, pam.getStart() - length, pam.getStart(), Strand.POSITIVE);
-			//logger.debug("Guide RNA neighboring " + pam.toUCSC() + " is " + rtrn.toString());
+			GuideRNA rtrn = new GuideRNA(targetGene, windowChr, pamStart - length, pamStart, Strand.POSITIVE);
+			//logger.debug("Guide RNA neighboring PAM is " + rtrn.toString());
 			return rtrn;
 		}
-		if(pam.getOrientation().equals(Strand.NEGATIVE)) {
-			if(pam.getEnd() + length > windowEnd) {
+		if(strand.equals(Strand.NEGATIVE)) {
+			int pamEnd = pamStart + 3;
+			if(pamEnd + length > windowEnd) {
 				// Guide RNA cannot be fully contained in window
-				logger.debug("Guide RNA neighboring " + pam.toUCSC() +" not fully contained in " + windowChr.getId() + ":" + windowStart + "-" + windowEnd);
+				logger.debug("Guide RNA neighboring " + windowChr.getId() + ":" + pamStart + "-" + pamEnd +" not fully contained in " + windowChr.getId() + ":" + windowStart + "-" + windowEnd);
 				return null;
 			}
-			GuideRNA rtrn = new GuideRNA(targetGene, windowChr, pam.getEnd(), pam.getEnd() + length, Strand.NEGATIVE);
-			//logger.debug("Guide RNA neighboring " + pam.toUCSC() + " is " + rtrn.toString());
+			GuideRNA rtrn = new GuideRNA(targetGene, windowChr, pamEnd, pamEnd + length, Strand.NEGATIVE);
+			//logger.debug("Guide RNA neighboring PAM is " + rtrn.toString());
 			return rtrn;
 		}
 		throw new IllegalArgumentException("Strand must be known");
 	}
 	
-	private static void validatePAM(Sequence chr, Annotation pam) {
-		if(pam.numBlocks() != 1) {
-			throw new IllegalArgumentException("Must have one block");
-		}
-		Sequence seq = chr.getSubsequence(pam);
-		String substr = seq.getSequenceBases().substring(1).toUpperCase();
-		if(!ALLOW_NAG_AS_PAM && !substr.equals("GG")) {
-			throw new IllegalArgumentException("Sequence must be NGG. Is " + seq.getSequenceBases());
-		}
-		if(ALLOW_NAG_AS_PAM && !(substr.equals("GG") || substr.equals("AG"))) {
-			throw new IllegalArgumentException("Sequence must be NGG or NAG. Is " + seq.getSequenceBases());
-		}
-	}
-	
 	/**
-	 * Get all NAG sequences that are fully contained within the window on either strand
-	 * @param chr Chromosome
-	 * @param start First position of window
-	 * @param end Position after last position of window
-	 * @return All NAGs as annotations with strand
+	 * Find all PAMs fully contained in a sequence, on either strand, in one pass
+	 * NGG on the positive strand and CCN on the negative strand, plus NAG and CTN if allowed; case is ignored
+	 * @param seq Sequence to scan
+	 * @param allowNAG Whether to also find NAG PAMs
+	 * @return For each PAM in order of position, its offset in the sequence shifted left by one,
+	 * with the low bit set for the negative strand
 	 */
-	private static Collection<Annotation> findAllNAGs(Sequence chr, int start, int end) {
-		String seq = chr.getSubSequence("", start, end).getSequenceBases();
-		Collection<Annotation> rtrn = new TreeSet<Annotation>();
-		
-		// Find all NAGs
-		int i1 = 0;
-		while(i1 < seq.length()) {
-			int pos = seq.indexOf("AG", i1);
-			if(pos == -1) {
-				break;
-			}
-			if(pos == 0) {
-				// Won't be fully contained
-				i1++;
-				continue;
-			}
-			if(pos + 2 > seq.length()) {
-				// Won't be fully contained
-				break;
-			}
-			// Create annotation
-			Annotation pam = new BasicAnnotation(chr.getId(), start + pos - 1, start + pos + 2, Strand.POSITIVE);
-			rtrn.add(pam);
-			i1 = pos + 1;
-		}
-		
-		int i2 = 0;
-		while(i2 < seq.length()) {
-			int pos = seq.indexOf("ag", i2);
-			if(pos == -1) {
-				break;
-			}
-			if(pos == 0) {
-				// Won't be fully contained
-				i2++;
-				continue;
-			}
-			if(pos + 2 > seq.length()) {
-				// Won't be fully contained
-				break;
-			}
-			// Create annotation
-			Annotation pam = new BasicAnnotation(chr.getId(), start + pos - 1, start + pos + 2, Strand.POSITIVE);
-			rtrn.add(pam);
-			i2 = pos + 1;
-		}
-		
-		int i3 = 0;
-		while(i3 < seq.length()) {
-			int pos = seq.indexOf("Ag", i3);
-			if(pos == -1) {
-				break;
-			}
-			if(pos == 0) {
-				// Won't be fully contained
-				i3++;
-				continue;
-			}
-			if(pos + 2 > seq.length()) {
-				// Won't be fully contained
-				break;
-			}
-			// Create annotation
-			Annotation pam = new BasicAnnotation(chr.getId(), start + pos - 1, start + pos + 2, Strand.POSITIVE);
-			rtrn.add(pam);
-			i3 = pos + 1;
-		}
-		
-		int i4 = 0;
-		while(i4 < seq.length()) {
-			int pos = seq.indexOf("aG", i4);
-			if(pos == -1) {
-				break;
-			}
-			if(pos == 0) {
-				// Won't be fully contained
-				i4++;
-				continue;
-			}
-			if(pos + 2 > seq.length()) {
-				// Won't be fully contained
-				break;
-			}
-			// Create annotation
-			Annotation pam = new BasicAnnotation(chr.getId(), start + pos - 1, start + pos + 2, Strand.POSITIVE);
-			rtrn.add(pam);
-			i4 = pos + 1;
-		}
-		
-		// Find all CCNs
-		int j1 = 0;
-		while(j1 < seq.length()) {
-			int pos = seq.indexOf("CT", j1);
-			if(pos == -1) break;
-			if(pos + 3 > seq.length()) {
-				// Won't be fully contained
-				break;
-			}
-			// Create annotation
-			Annotation ccn = new BasicAnnotation(chr.getId(), start + pos, start + pos + 3, Strand.NEGATIVE);
-			rtrn.add(ccn);
-			j1 = pos + 1;
-		}
-		
-		int j2 = 0;
-		while(j2 < seq.length()) {
-			int pos = seq.indexOf("cT", j2);
-			if(pos == -1) break;
-			if(pos + 3 > seq.length()) {
-				// Won't be fully contained
-				break;
-			}
-			// Create annotation
-			Annotation ccn = new BasicAnnotation(chr.getId(), start + pos, start + pos + 3, Strand.NEGATIVE);
-			rtrn.add(ccn);
-			j2 = pos + 1;
-		}
-		
-		int j3 = 0;
-		while(j3 < seq.length()) {
-			int pos = seq.indexOf("ct", j3);
-			if(pos == -1) break;
-			if(pos + 3 > seq.length()) {
-				// Won't be fully contained
-				break;
-			}
-			// Create annotation
-			Annotation ccn = new BasicAnnotation(chr.getId(), start + pos, start + pos + 3, Strand.NEGATIVE);
-			rtrn.add(ccn);
-			j3 = pos + 1;
-		}
-		
-		int j4 = 0;
-		while(j4 < seq.length()) {
-			int pos = seq.indexOf("Ct", j4);
-			if(pos == -1) break;
-			if(pos + 3 > seq.length()) {
-				// Won't be fully contained
-				break;
-			}
-			// Create annotation
-			Annotation ccn = new BasicAnnotation(chr.getId(), start + pos, start + pos + 3, Strand.NEGATIVE);
-			rtrn.add(ccn);
-			j4 = pos + 1;
-		}
-		
-		return rtrn;
-		
-	}
-
-	
-	/**
-	 * Get all NGG sequences that are fully contained within the window on either strand
-	 * @param chr Chromosome
-	 * @param start First position of window
-	 * @param end Position after last position of window
-	 * @return All NGGs as annotations with strand
-	 */
-	private static Collection<Annotation> findAllNGGs(Sequence chr, int start, int end) {
-		String seq = chr.getSubSequence("", start, end).getSequenceBases();
-		Collection<Annotation> rtrn = new TreeSet<Annotation>();
-		
-		// Find all NGGs
-		int i1 = 0;
-		while(i1 < seq.length()) {
-			int pos = seq.indexOf("GG", i1);
-			if(pos == -1) {
-				break;
-			}
-			if(pos == 0) {
-				// Won't be fully contained
-				i1++;
-				continue;
-			}
-			if(pos + 2 > seq.length()) {
-				// Won't be fully contained
-				break;
-			}
-			// Create annotation
-			Annotation ngg = new BasicAnnotation(chr.getId(), start + pos - 1, start + pos + 2, Strand.POSITIVE);
-			//logger.debug("NGG in " + chr.getId() + ":" + start + "-" + end + "\t" + ngg.toUCSC() + ":" + ngg.getOrientation().toString());
-			rtrn.add(ngg);
-			i1 = pos + 1;
-		}
-		
-		int i2 = 0;
-		while(i2 < seq.length()) {
-			int pos = seq.indexOf("gg", i2);
-			if(pos == -1) {
-				break;
-			}
-			if(pos == 0) {
-				// Won't be fully contained
-				i2++;
-				continue;
-			}
-			if(pos + 2 > seq.length()) {
-				// Won't be fully contained
-				break;
-			}
-			// Create annotation
-			Annotation ngg = new BasicAnnotation(chr.getId(), start + pos - 1, start + pos + 2, Strand.POSITIVE);
-			//logger.debug("NGG in " + chr.getId() + ":" + start + "-" + end + "\t" + ngg.toUCSC() + ":" + ngg.getOrientation().toString());
-			rtrn.add(ngg);
-			i2 = pos + 1;
-		}
-		
-		int i3 = 0;
-		while(i3 < seq.length()) {
-			int pos = seq.indexOf("Gg", i3);
-			if(pos == -1) {
-				break;
-			}
-			if(pos == 0) {
-				// Won't be fully contained
-				i3++;
-				continue;
-			}
-			if(pos + 2 > seq.length()) {
-				// Won't be fully contained
-				break;
-			}
-			// Create annotation
-			Annotation ngg = new BasicAnnotation(chr.getId(), start + pos - 1, start + pos + 2, Strand.POSITIVE);
-			//logger.debug("NGG in " + chr.getId() + ":" + start + "-" + end + "\t" + ngg.toUCSC() + ":" + ngg.getOrientation().toString());
-			rtrn.add(ngg);
-			i3 = pos + 1;
-		}
-		
-		int i4 = 0;
-		while(i4 < seq.length()) {
-			int pos = seq.indexOf("gG", i4);
-			if(pos == -1) {
-				break;
-			}
-			if(pos == 0) {
-				// Won't be fully contained
-				i4++;
-				continue;
-			}
-			if(pos + 2 > seq.length()) {
-				// Won't be fully contained
-				break;
-			}
-			// Create annotation
-			Annotation ngg = new BasicAnnotation(chr.getId(), start + pos - 1, start + pos + 2, Strand.POSITIVE);
-			//logger.debug("NGG in " + chr.getId() + ":" + start + "-" + end + "\t" + ngg.toUCSC() + ":" + ngg.getOrientation().toString());
-			rtrn.add(ngg);
-			i4 = pos + 1;
-		}
-		
-		// Find all CCNs
-		int j1 = 0;
-		while(j1 < seq.length()) {
-			int pos = seq.indexOf("CC", j1);
-			if(pos == -1) break;
-			if(pos + 3 > seq.length()) {
-				// Won't be fully contained
-				break;
-			}
-			// Create annotation
-			Annotation ccn = new BasicAnnotation(chr.getId(), start + pos, start + pos + 3, Strand.NEGATIVE);
-			//logger.debug("NGG in " + chr.getId() + ":" + start + "-" + end + "\t" + ccn.toUCSC() + ":" + ccn.getOrientation().toString());
-			rtrn.add(ccn);
-			j1 = pos + 1;
-		}
-		
-		int j2 = 0;
-		while(j2 < seq.length()) {
-			int pos = seq.indexOf("cC", j2);
-			if(pos == -1) break;
-			if(pos + 3 > seq.length()) {
-				// Won't be fully contained
-				break;
-			}
-			// Create annotation
-			Annotation ccn = new BasicAnnotation(chr.getId(), start + pos, start + pos + 3, Strand.NEGATIVE);
-			//logger.debug("NGG in " + chr.getId() + ":" + start + "-" + end + "\t" + ccn.toUCSC() + ":" + ccn.getOrientation().toString());
-			rtrn.add(ccn);
-			j2 = pos + 1;
-		}
-		
-		int j3 = 0;
-		while(j3 < seq.length()) {
-			int pos = seq.indexOf("cc", j3);
-			if(pos == -1) break;
-			if(pos + 3 > seq.length()) {
-				// Won't be fully contained
-				break;
-			}
-			// Create annotation
-			Annotation ccn = new BasicAnnotation(chr.getId(), start + pos, start + pos + 3, Strand.NEGATIVE);
-			//logger.debug("NGG in " + chr.getId() + ":" + start + "-" + end + "\t" + ccn.toUCSC() + ":" + ccn.getOrientation().toString());
-			rtrn.add(ccn);
-			j3 = pos + 1;
-		}
-		
-		int j4 = 0;
-		while(j4 < seq.length()) {
-			int pos = seq.indexOf("Cc", j4);
-			if(pos == -1) break;
-			if(pos + 3 > seq.length()) {
-				// Won't be fully contained
-				break;
+	public static int[] findAllPAMs(String seq, boolean allowNAG) {
+		int[] rtrn = new int[64];
+		int n = 0;
+		for(int p = 0; p + 3 <= seq.length(); p++) {
+			char second = Character.toUpperCase(seq.charAt(p + 1));
+			int pam = -1;
+			if(Character.toUpperCase(seq.charAt(p + 2)) == 'G' && (second == 'G' || (allowNAG && second == 'A'))) {
+				pam = p << 1;
+			} else if(Character.toUpperCase(seq.charAt(p)) == 'C' && (second == 'C' || (allowNAG && second == 'T'))) {
+				pam = (p << 1) | 1;
+			}
+			if(pam >= 0) {
+				if(n == rtrn.length) {
+					rtrn = Arrays.copyOf(rtrn, 2 * n);
+				}
+				rtrn[n++] = pam;
 			}
-			// Create annotation
-			Annotation ccn = new BasicAnnotation(chr.getId(), start + pos, start + pos + 3, Strand.NEGATIVE);
-			//logger.debug("NGG in " + chr.getId() + ":" + start + "-" + end + "\t" + ccn.toUCSC() + ":" + ccn.getOrientation().toString());
-			rtrn.add(ccn);
-			j4 = pos + 1;
 		}
-		
-		return rtrn;
-		
+		return Arrays.copyOf(rtrn, n);
 	}
 	
 	private static void validateStartEnd(int start, int end) {
@@ -555,31 +251,47 @@ public class GuideRNA extends BasicAnnotation {
 		}
 	}
 	
-	private static void validateSequenceWithPAM(Sequence sequence) {
-		String substr = sequence.getSequenceBases().substring(sequence.getLength() - 2, sequence.getLength());
+	private static void validateSequenceWithPAM(String sequence) {
+		String substr = sequence.substring(sequence.length() - 2, sequence.length());
 		if(!ALLOW_NAG_AS_PAM && !substr.equals("GG")) {
-			throw new IllegalArgumentException("Sequence must end in GG: " + sequence.getSequenceBases());
+			throw new IllegalArgumentException("Sequence must end in GG: " + sequence);
 		}
 		if(ALLOW_NAG_AS_PAM && !(substr.equals("GG") || substr.equals("AG"))) {
-			throw new IllegalArgumentException("Sequence must end in GG or AG: " + sequence.getSequenceBases());
+			throw new IllegalArgumentException("Sequence must end in GG or AG: " + sequence);
 		}
 	}
 
+	/**
+	 * Hash of the position, sequence and target, without building any strings
+	 */
 	public int hashCode() {
-		String s = toBED() + getName() + sequenceWithoutPAM.getSequenceBases();
-		if (target != null) s = s + target.toBED();
-		return s.hashCode();
+		int rtrn = getReferenceName().hashCode();
+		rtrn = 31 * rtrn + getStart();
+		rtrn = 31 * rtrn + getEnd();
+		rtrn = 31 * rtrn + getOrientation().ordinal();
+		rtrn = 31 * rtrn + sequenceWithPAM.hashCode();
+		if (target != null) {
+			rtrn = 31 * rtrn + target.getStart();
+			rtrn = 31 * rtrn + target.getEnd();
+		}
+		return rtrn;
 	}
 	
 	public boolean equals(Object o) {
-		if(!o.getClass().equals(getClass())) return false;
+		if(this == o) return true;
+		if(o == null || !o.getClass().equals(getClass())) return false;
 		GuideRNA g = (GuideRNA)o;
-		return hashCode() == g.hashCode();
+		if(getStart() != g.getStart() || getEnd() != g.getEnd() || getOrientation() != g.getOrientation()) return false;
+		if(!getReferenceName().equals(g.getReferenceName()) || !getName().equals(g.getName())) return false;
+		if(!sequenceWithPAM.equals(g.sequenceWithPAM)) return false;
+		if(target == null || g.target == null) return target == g.target;
+		return target == g.target || (target.getStart() == g.target.getStart() && target.getEnd() == g.target.getEnd()
+				&& target.getReferenceName().equals(g.target.getReferenceName()) && target.getName().equals(g.target.getName()));
 	}
 
 	
 	public String toBedWithSequence() {
-		return toBED() + "\t" + sequenceWithoutPAM.getSequenceBases();
+		return toBED() + "\t" + getSequenceString();
 	}
 
 	/**
@@ -3,7 +3,10 @@ package editing.crispr;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
@@ -142,6 +145,82 @@ public class NickingGuideRNAPair extends BasicAnnotation {
 		return rtrn;
 	}
 	
+	/**
+	 * Get the guide RNA pairs fully contained in the window that are laid out for double nicking: non-overlapping,
+	 * facing outward and with inner distance at most maxInnerDistance (see GuidePairDoubleNickConfiguration)
+	 * Only those pairs are built. Minus strand guides are sorted by end, and each plus strand guide is paired with the
+	 * minus strand guides ending between maxInnerDistance before its start and its start.
+	 * Pairs come in the same order as from findAll.
+	 * @param chr Window chromosome
+	 * @param start Window start
+	 * @param end Position after last position of window
+	 * @param minLen Min length of guide sequence without PAM
+	 * @param maxLen Max length of guide sequence without PAM
+	 * @param targetGene Target gene
+	 * @param maxInnerDistance Max inner distance between the two guide RNAs
+	 * @return The fully contained guide RNA pairs in double nick configuration
+	 */
+	public static Collection<NickingGuideRNAPair> findAllDoubleNick(Sequence chr, int start, int end, int minLen, int maxLen, Gene targetGene, int maxInnerDistance) {
+		Collection<GuideRNA> all = GuideRNA.findAll(chr, start, end, minLen, maxLen, targetGene, false);
+		List<GuideRNA> plus = new ArrayList<GuideRNA>();
+		final List<GuideRNA> minus = new ArrayList<GuideRNA>();
+		Collection<NickingGuideRNAPair> rtrn = new ArrayList<NickingGuideRNAPair>();
+		for(GuideRNA g : all) {
+			if(g.isPlusStrand()) {
+				plus.add(g);
+			}
+			if(g.isMinusStrand()) {
+				minus.add(g);
+			}
+		}
+		// Indices of minus strand guides by end; the sort is stable
+		Integer[] byEnd = new Integer[minus.size()];
+		for(int i = 0; i < byEnd.length; i++) {
+			byEnd[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(byEnd, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i, Integer j) {
+				return minus.get(i.intValue()).getEnd() - minus.get(j.intValue()).getEnd();
+			}
+		});
+		int[] ends = new int[byEnd.length];
+		for(int i = 0; i < ends.length; i++) {
+			ends[i] = minus.get(byEnd[i].intValue()).getEnd();
+		}
+		for(GuideRNA p : plus) {
+			// The minus strand guide is on the left, so its end must be within maxInnerDistance before the plus strand guide starts
+			int from = firstAtLeast(ends, p.getStart() - maxInnerDistance);
+			int to = firstAtLeast(ends, p.getStart() + 1);
+			int[] partners = new int[to - from];
+			for(int i = from; i < to; i++) {
+				partners[i - from] = byEnd[i].intValue();
+			}
+			Arrays.sort(partners);
+			for(int m : partners) {
+				rtrn.add(new NickingGuideRNAPair(p, minus.get(m), targetGene));
+			}
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * @return Index of the first value at least min, or the length if none
+	 */
+	private static int firstAtLeast(int[] sorted, int min) {
+		int lo = 0;
+		int hi = sorted.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(sorted[mid] < min) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
 	public Gene getTargetGene() {
 		return target;
 	}
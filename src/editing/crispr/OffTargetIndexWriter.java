@@ -0,0 +1,186 @@
+package editing.crispr;
+
+import java.io.*;
+import java.util.*;
+
+import nextgen.core.annotation.Annotation.Strand;
+
+/**
+ * Writes a self-describing off target index, read back by OffTargetSiteStore
+ *
+ * Layout (big-endian, every section offset is from the start of the file):
+ *   Header, HEADER_BYTES long:
+ *     0   magic "CRISPRIX"
+ *     8   int version
+ *     12  int guide length (bases, without PAM)
+ *     16  int PAM type (PAM_NGG or PAM_NGG_AND_NAG)
+ *     24  long number of records
+ *     32  long offset of the sequence section
+ *     40  long offset of the coordinate section
+ *     48  long offset of the chromosome table
+ *   Sequences: the bitpacked guide sequences as written by BitpackGuideSequences, 5 bytes per 20mer
+ *   Coordinates: one long per record, 8-byte aligned, parallel to the sequences:
+ *     bits 0-31 start, bit 32 set on the negative strand, bits 33-34 the N base of the PAM,
+ *     bit 35 set for NAG PAMs, bits 40-63 the index into the chromosome table
+ *   Chromosome table: int count, then each name in modified UTF-8 (DataOutput.writeUTF)
+ *
+ * Record i is the i-th site scored by GuideOffTargetScore, so hits resolve to coordinates with one lookup.
+ */
+public class OffTargetIndexWriter {
+
+	public static final byte[] MAGIC = new byte[] {'C', 'R', 'I', 'S', 'P', 'R', 'I', 'X'};
+	public static final int VERSION = 1;
+	public static final int HEADER_BYTES = 64;
+	public static final int PAM_NGG = 0;
+	public static final int PAM_NGG_AND_NAG = 1;
+
+	private File output;
+	private int guideLength;
+	private int pamType = PAM_NGG;
+	private long numRecords = 0;
+	private long sequenceBytes = 0;
+	private DataOutputStream sequences;
+	private File coordinateFile;
+	private DataOutputStream coordinates;
+	private Map<String, Integer> chromosomes = new LinkedHashMap<String, Integer>();
+
+	/**
+	 * @param output Index file to write
+	 * @param guideLength Guide length without PAM
+	 * @throws IOException
+	 */
+	public OffTargetIndexWriter(File output, int guideLength) throws IOException {
+		this.output = output;
+		this.guideLength = guideLength;
+		sequences = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+		// Header is filled in on close
+		sequences.write(new byte[HEADER_BYTES]);
+		// Coordinates are staged in a temp file next to the output and appended on close
+		coordinateFile = File.createTempFile("coordinates", ".tmp", output.getAbsoluteFile().getParentFile());
+		coordinateFile.deleteOnExit();
+		coordinates = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(coordinateFile)));
+	}
+
+	/**
+	 * Add the next record
+	 * @param chr Chromosome
+	 * @param start Start of the site including PAM
+	 * @param strand Strand of the guide
+	 * @param sequenceWithPAM Site sequence in guide orientation, guide followed by PAM
+	 * @throws IOException
+	 */
+	public void add(String chr, int start, Strand strand, String sequenceWithPAM) throws IOException {
+		if (sequenceWithPAM.length() < guideLength) {
+			throw new IllegalArgumentException("Sequence " + sequenceWithPAM + " is shorter than the guide length " + guideLength);
+		}
+		Integer chrIndex = chromosomes.get(chr);
+		if (chrIndex == null) {
+			chrIndex = Integer.valueOf(chromosomes.size());
+			chromosomes.put(chr, chrIndex);
+		}
+		char pamN = sequenceWithPAM.length() > guideLength ? sequenceWithPAM.charAt(guideLength) : 'N';
+		boolean nag = sequenceWithPAM.length() > guideLength + 1 && Character.toUpperCase(sequenceWithPAM.charAt(guideLength + 1)) == 'A';
+		if (nag) pamType = PAM_NGG_AND_NAG;
+
+		byte[] bytes = BitpackGuideSequences.sequenceToBits(sequenceWithPAM.substring(0, guideLength));
+		sequences.write(bytes);
+		sequenceBytes += bytes.length;
+		coordinates.writeLong(packCoordinate(chrIndex.intValue(), start, strand == Strand.NEGATIVE, pamN, nag));
+		numRecords++;
+	}
+
+	/**
+	 * @return Number of records added so far
+	 */
+	public long getNumRecords() {
+		return numRecords;
+	}
+
+	/**
+	 * Append the coordinates and chromosome table and write the header
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		long sequenceOffset = HEADER_BYTES;
+		long written = sequenceOffset + sequenceBytes;
+
+		// Align the coordinates so they can be read as longs from a mapped buffer
+		int padding = (int) ((8 - written % 8) % 8);
+		sequences.write(new byte[padding]);
+		written += padding;
+
+		long coordinateOffset = written;
+		try {
+			coordinates.close();
+			InputStream in = new BufferedInputStream(new FileInputStream(coordinateFile));
+			try {
+				byte[] buffer = new byte[1 << 16];
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					sequences.write(buffer, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+		} finally {
+			coordinateFile.delete();
+		}
+		written += 8 * numRecords;
+
+		long chromosomeOffset = written;
+		sequences.writeInt(chromosomes.size());
+		for (String chr : chromosomes.keySet()) {
+			sequences.writeUTF(chr);
+		}
+		sequences.close();
+
+		RandomAccessFile raf = new RandomAccessFile(output, "rw");
+		raf.write(MAGIC);
+		raf.writeInt(VERSION);
+		raf.writeInt(guideLength);
+		raf.writeInt(pamType);
+		raf.writeInt(0);
+		raf.writeLong(numRecords);
+		raf.writeLong(sequenceOffset);
+		raf.writeLong(coordinateOffset);
+		raf.writeLong(chromosomeOffset);
+		raf.close();
+	}
+
+	/**
+	 * Give up on the index after a failure: close the streams and delete the temp coordinates file
+	 * The partly written output is left for the caller to remove.
+	 */
+	public void abort() {
+		try {
+			coordinates.close();
+		} catch (IOException e) {
+			// Nothing more to do with a failed writer
+		}
+		try {
+			sequences.close();
+		} catch (IOException e) {
+			// Nothing more to do with a failed writer
+		}
+		coordinateFile.delete();
+	}
+
+	/**
+	 * Pack one record's coordinates into the layout described above
+	 * @param chrIndex Index into the chromosome table
+	 * @param start Start of the site
+	 * @param negativeStrand Whether the guide is on the negative strand
+	 * @param pamN N base of the PAM
+	 * @param nag Whether the PAM is NAG rather than NGG
+	 * @return Packed coordinate
+	 */
+	public static long packCoordinate(int chrIndex, int start, boolean negativeStrand, char pamN, boolean nag) {
+		long rtrn = start & 0xFFFFFFFFL;
+		if (negativeStrand) rtrn |= 1L << 32;
+		rtrn |= ((long) BitpackGuideSequences.baseToBits(pamN)) << 33;
+		if (nag) rtrn |= 1L << 35;
+		rtrn |= ((long) chrIndex) << 40;
+		return rtrn;
+	}
+
+}
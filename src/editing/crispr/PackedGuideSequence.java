@@ -0,0 +1,113 @@
+package editing.crispr;
+
+/**
+ * Immutable guide sequence stored as 2-bit bases in a long, with the same layout as BitpackGuideSequences:
+ * base i in bits 2i and 2i+1 (A=0, C=1, G=2, T=3)
+ * N positions are flagged in a separate mask. Sequences longer than 32 bases, or with any other
+ * character (e.g. lower case or IUPAC codes), are kept as the original string so toString() is always exact.
+ */
+public final class PackedGuideSequence {
+
+	public static final int MAX_PACKED_LENGTH = 32;
+	private static final String BASES = "ACGT";
+
+	private final long bases;
+	private final long nMask;
+	private final int length;
+	private final String raw;
+
+	private PackedGuideSequence(long bases, long nMask, int length, String raw) {
+		this.bases = bases;
+		this.nMask = nMask;
+		this.length = length;
+		this.raw = raw;
+	}
+
+	/**
+	 * @param seq Sequence
+	 * @return Packed sequence
+	 */
+	public static PackedGuideSequence pack(String seq) {
+		if (seq.length() > MAX_PACKED_LENGTH) {
+			return new PackedGuideSequence(0, 0, seq.length(), seq);
+		}
+		long bases = 0;
+		long nMask = 0;
+		for (int i = 0; i < seq.length(); i++) {
+			char c = seq.charAt(i);
+			if (c == 'N') {
+				nMask |= 1L << i;
+			} else {
+				int code = BASES.indexOf(c);
+				if (code < 0) {
+					return new PackedGuideSequence(0, 0, seq.length(), seq);
+				}
+				bases |= ((long) code) << (2*i);
+			}
+		}
+		return new PackedGuideSequence(bases, nMask, seq.length(), null);
+	}
+
+	/**
+	 * @return Number of bases
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @return Whether the bases are held in packed form; otherwise getBases() is meaningless
+	 */
+	public boolean isPacked() {
+		return raw == null;
+	}
+
+	/**
+	 * @return Packed bases, N read as A; only meaningful if isPacked()
+	 */
+	public long getBases() {
+		return bases;
+	}
+
+	/**
+	 * @return Bit i set if base i is N; only meaningful if isPacked()
+	 */
+	public long getNMask() {
+		return nMask;
+	}
+
+	/**
+	 * @param n Number of leading bases
+	 * @return The first n bases
+	 */
+	public String prefix(int n) {
+		if (raw != null) return raw.substring(0, n);
+		char[] chars = new char[n];
+		for (int i = 0; i < n; i++) {
+			chars[i] = (nMask & (1L << i)) != 0 ? 'N' : BASES.charAt((int) ((bases >>> (2*i)) & 0x3));
+		}
+		return new String(chars);
+	}
+
+	@Override
+	public String toString() {
+		return prefix(length);
+	}
+
+	@Override
+	public int hashCode() {
+		if (raw != null) return raw.hashCode();
+		long h = bases * 31 + nMask;
+		return (int) (h ^ (h >>> 32)) * 31 + length;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof PackedGuideSequence)) return false;
+		PackedGuideSequence p = (PackedGuideSequence) o;
+		if (raw != null || p.raw != null) return raw != null && raw.equals(p.raw);
+		return bases == p.bases && nMask == p.nMask && length == p.length;
+	}
+
+}
@@ -6,11 +6,17 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -24,12 +30,17 @@ import editing.SingleCleavageTypeIIRestrictionEnzyme;
 import editing.TypeIISRestrictionEnzyme;
 import editing.crispr.GuideRNA;
 import editing.crispr.NickingGuideRNAPair;
+import editing.crispr.predicate.AnnotationIntervalIndex;
 import editing.crispr.predicate.GuideLacksEnzymeCutSite;
 import editing.crispr.predicate.GuidePairDoubleNickConfiguration;
 import editing.crispr.predicate.GuideProximityToNearestRegion;
 import editing.crispr.predicate.GuideSufficientEfficacy;
 import editing.crispr.predicate.GuideSufficientIsolation;
+import editing.crispr.score.EfficacyScoreBatcher;
+import editing.crispr.score.EfficacyScoreCache;
+import editing.crispr.score.EfficacyScoreRWorker;
 import editing.crispr.score.GuideEfficacyScore;
+import editing.crispr.score.GuideEfficacySvm;
 import editing.crispr.score.GuideOffTargetScore;
 import editing.crispr.score.GuidePairCombinedEfficacyDistanceScore;
 import guttmanlab.core.util.CommandLineParser;
@@ -69,6 +80,8 @@ public class DoubleNickCRISPRDesigner {
 	private static boolean WRITE_FAILED_PAIRS_FOR_MISSING_REGIONS = false;
 	private static int MIN_OFF_TARGET_SCORE = 30;
 	private static File OFF_TARGET_BITS = null;
+	private static File OFF_TARGET_CFD_MATRIX = null;
+	private static int OFF_TARGET_MAX_BULGES = 0;
 	private static int NUM_BEST_PAIRS_TO_GET_PER_CUT = 20;
 	private static boolean POOL_NON_OVERLAPPING = false;
 	private static String LEFT_OLIGO_FLANKING_SEQUENCE;
@@ -76,14 +89,15 @@ public class DoubleNickCRISPRDesigner {
 	private static Collection<RestrictionEnzyme> FORBIDDEN_ENZYMES = new ArrayList<RestrictionEnzyme>();
 	private static int MAX_NUM_POOLS = 12;
 	private static String PRIMER3_CORE;
+	private static int MAX_ATTEMPTS_PER_GENE = 2;
 	private FileWriter failedPairBedWriter;
 	private FileWriter failedPairTableWriter;
 	private Collection<NickingGuideRNAPair> allValidPairs;
 	
 	/**
-	 * Full gene annotation
+	 * Full gene annotation, indexed once and shared by all genes and threads
 	 */
-	private Map<String, Collection<Gene>> annotation;
+	private AnnotationIntervalIndex<Gene> annotation;
 	
 	/**
 	 * The genes to target with CRISPR system
@@ -99,6 +113,11 @@ public class DoubleNickCRISPRDesigner {
 	 * Collection of restriction enzyme cut sites in window of interest downstream of each gene to edit
 	 */
 	private Map<Gene, Collection<RestrictionEnzymeCutSite>> downstreamRestrictionEnzymeCutSitesByGene;
+	
+	/**
+	 * Off target scorer shared by all genes and threads; read-only once loaded
+	 */
+	private GuideOffTargetScore offTargetScorer = null;
 
 	/**
 	 * @param genomeFasta Genome fasta file
@@ -109,7 +128,7 @@ public class DoubleNickCRISPRDesigner {
 	private DoubleNickCRISPRDesigner(String genomeFasta, String bedFileTargetGenes, String bedFileFullAnnotation) throws IOException {
 		chrsByName = FastaSequenceIO.getChrSequencesFromFasta(genomeFasta);
 		targetGenes = BEDFileParser.loadDataByChr(new File(bedFileTargetGenes));
-		annotation = BEDFileParser.loadDataByChr(new File(bedFileFullAnnotation));
+		annotation = new AnnotationIntervalIndex<Gene>(BEDFileParser.loadDataByChr(new File(bedFileFullAnnotation)));
 	}
 	
 	/**
@@ -362,56 +381,78 @@ public class DoubleNickCRISPRDesigner {
 	}
 	
 	
-	private class ValidPairFinder implements Runnable {
+	/**
+	 * Search for the best poolable valid pairs in the window upstream or downstream of one gene
+	 * A failed search is tried again up to MAX_ATTEMPTS_PER_GENE times in all; if it still fails, its pairs are null
+	 * and the last failure is kept for reporting. IllegalArgumentException means the gene's guides or parameters can
+	 * never work, so it is not retried; anything else, including a failed R process, may be transient.
+	 */
+	private class PairSearch implements Callable<PairSearch> {
 		
-		private ConcurrentLinkedQueue<Gene> geneQueue;
+		private Gene gene;
+		private boolean upstream;
+		private Collection<NickingGuideRNAPair> pairs = null;
+		private Exception failure = null;
+		private int attempts = 0;
+		private long millis = 0;
 		
-		public ValidPairFinder(ConcurrentLinkedQueue<Gene> genes) {
-			geneQueue = genes;
+		public PairSearch(Gene targetGene, boolean upstreamOfTranscriptionStart) {
+			gene = targetGene;
+			upstream = upstreamOfTranscriptionStart;
 		}
 		
 		@Override
-		public void run() {
-			while(!geneQueue.isEmpty()) {
-				Gene gene = geneQueue.poll();
+		public PairSearch call() {
+			logger.info("Finding guide RNA pairs " + getWindowName() + " of gene " + gene.getName());
+			long start = System.currentTimeMillis();
+			while(pairs == null && attempts < MAX_ATTEMPTS_PER_GENE) {
+				attempts++;
 				try {
-					synchronized(logger) {
-						logger.info("Finding guide RNA pairs for gene " + gene.getName());
-					}
-					Collection<NickingGuideRNAPair> upstream = getPoolableBestGuidePairs(findAllValidPairsUpstreamOfTranscriptionStart(gene));
-					if(upstream.size() != NUM_BEST_PAIRS_TO_GET_PER_CUT) {
-						synchronized(logger) {
-							logger.warn("Could only get " + upstream.size() + " good poolable pairs upstream of " + gene.getName());
-						}
-					}
-					Collection<NickingGuideRNAPair> downstream = getPoolableBestGuidePairs(findAllValidPairsDownstreamOfTranscriptionStop(gene));
-					if(downstream.size() != NUM_BEST_PAIRS_TO_GET_PER_CUT) {
-						synchronized(logger) {
-							logger.warn("Could only get " + downstream.size() + " good poolable pairs downstream of " + gene.getName());
-						}
-					}
-					synchronized(allValidPairs) {
-						allValidPairs.addAll(upstream);
-						allValidPairs.addAll(downstream);
-					}
-				} catch (IOException e) {
-					synchronized(logger) {
-						logger.warn("Caught exception, skipping gene " + gene.getName());
-					}
-					e.printStackTrace();
-				} catch (InterruptedException e) {
-					synchronized(logger) {
-						logger.warn("Caught exception, skipping gene " + gene.getName());
-					}
-					e.printStackTrace();
+					pairs = search();
+				} catch(InterruptedException e) {
+					failure = e;
+					Thread.currentThread().interrupt();
+					break;
+				} catch(IllegalArgumentException e) {
+					failure = e;
+					logger.warn("Not retrying " + getWindowName() + " of " + gene.getName() + ": " + e);
+					break;
+				} catch(Exception e) {
+					failure = e;
+					logger.warn("Attempt " + attempts + " of " + MAX_ATTEMPTS_PER_GENE + " failed " + getWindowName() + " of " + gene.getName() + ": " + e);
 				}
 			}
+			millis = System.currentTimeMillis() - start;
+			return this;
+		}
+		
+		private Collection<NickingGuideRNAPair> search() throws IOException, InterruptedException {
+			Collection<NickingGuideRNAPair> rtrn = getPoolableBestGuidePairs(upstream ? findAllValidPairsUpstreamOfTranscriptionStart(gene) : findAllValidPairsDownstreamOfTranscriptionStop(gene));
+			if(rtrn.size() != NUM_BEST_PAIRS_TO_GET_PER_CUT) {
+				logger.warn("Could only get " + rtrn.size() + " good poolable pairs " + getWindowName() + " of " + gene.getName());
+			}
+			return rtrn;
+		}
+		
+		private String getWindowName() {
+			return upstream ? "upstream" : "downstream";
 		}
 		
 	}
 	
-	
-	private void findValidPairsAllGenes(int numThreads) throws IOException, InterruptedException {
+	/**
+	 * Find the best poolable valid pairs upstream and downstream of every target gene
+	 * Each window of each gene is a separate task on a pool of numThreads threads, so no thread waits on another
+	 * gene's windows. Results are collected by this thread as the tasks finish and added to allValidPairs in gene
+	 * order once all genes are done; genes whose search fails (see PairSearch) are skipped and reported.
+	 * Each finished gene is also written to a checkpoint, and when resuming, genes in the checkpoint are not searched again.
+	 * @param numThreads Number of threads
+	 * @param checkpointFile Checkpoint file
+	 * @param resume Whether to resume from the checkpoint file; otherwise it is started over
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void findValidPairsAllGenes(int numThreads, File checkpointFile, boolean resume) throws IOException, InterruptedException {
 		
 		logger.info("");
 		logger.info("Finding valid guide RNA pairs for all genes...");
@@ -423,26 +464,96 @@ public class DoubleNickCRISPRDesigner {
 			genes.addAll(targetGenes.get(chr));
 		}
 		
-		ConcurrentLinkedQueue<Gene> geneQueue = new ConcurrentLinkedQueue<Gene>(genes);
+		GuidePairCheckpoint checkpoint = new GuidePairCheckpoint(checkpointFile, resume, genes);
+		// All pairs of each gene once done
+		Map<Gene, Collection<NickingGuideRNAPair>> pairsByGene = new LinkedHashMap<Gene, Collection<NickingGuideRNAPair>>();
+		int numGenesDone = 0;
+		for(Gene gene : genes) {
+			Collection<NickingGuideRNAPair> pairs = checkpoint.getPairs(gene);
+			pairsByGene.put(gene, pairs);
+			if(pairs != null) {
+				numGenesDone++;
+			}
+		}
 		
-		Collection<Thread> threads = new ArrayList<Thread>();
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		CompletionService<PairSearch> completed = new ExecutorCompletionService<PairSearch>(executor);
+		// Upstream and downstream search of each gene, filled in as they finish
+		Map<Gene, PairSearch[]> searches = new LinkedHashMap<Gene, PairSearch[]>();
+		for(Gene gene : genes) {
+			if(pairsByGene.get(gene) != null) {
+				continue;
+			}
+			searches.put(gene, new PairSearch[2]);
+			completed.submit(new PairSearch(gene, true));
+			completed.submit(new PairSearch(gene, false));
+		}
 		
-		for(int i = 0; i < numThreads; i++) {
-			ValidPairFinder pf = new ValidPairFinder(geneQueue);
-			Thread t = new Thread(pf);
-			threads.add(t);
-			t.start();
+		Collection<String> skipped = new ArrayList<String>();
+		try {
+			for(int i = 0; i < 2 * searches.size(); i++) {
+				PairSearch search;
+				try {
+					search = completed.take().get();
+				} catch(ExecutionException e) {
+					throw new IllegalStateException("Guide pair search failed", e.getCause());
+				}
+				PairSearch[] both = searches.get(search.gene);
+				both[search.upstream ? 0 : 1] = search;
+				if(both[0] == null || both[1] == null) {
+					continue;
+				}
+				numGenesDone++;
+				double sec = (both[0].millis + both[1].millis) / 1000.0;
+				for(PairSearch s : both) {
+					if(s.pairs == null) {
+						logger.warn("SKIPPED_GENE\t" + s.gene.getName() + "\t" + s.getWindowName() + "\tattempts=" + s.attempts + "\t" + s.failure);
+					}
+				}
+				if(both[0].pairs == null || both[1].pairs == null) {
+					skipped.add(search.gene.getName());
+					continue;
+				}
+				Collection<NickingGuideRNAPair> pairs = new ArrayList<NickingGuideRNAPair>(both[0].pairs);
+				pairs.addAll(both[1].pairs);
+				pairsByGene.put(search.gene, pairs);
+				checkpoint.write(search.gene, pairs);
+				logger.info("Finished gene " + search.gene.getName() + " (" + numGenesDone + "/" + genes.size() + ") in " + sec + " seconds with " + pairs.size() + " pairs");
+			}
+		} finally {
+			executor.shutdownNow();
+			checkpoint.close();
 		}
 		
-		Thread.sleep(1000);
-		for(Thread t : threads) {
-			t.join();
+		for(Collection<NickingGuideRNAPair> pairs : pairsByGene.values()) {
+			if(pairs != null) {
+				allValidPairs.addAll(pairs);
+			}
 		}
 		
 		logger.info("Found " + allValidPairs.size() + " total valid guide pairs.");
+		if(!skipped.isEmpty()) {
+			logger.warn("Skipped " + skipped.size() + " genes that could not be processed: " + skipped);
+		}
 	
 	}
 	
+	/**
+	 * Get the off target scorer shared by all genes and threads, loading the off target sites and seed index on first use
+	 * @return The scorer
+	 */
+	private synchronized GuideOffTargetScore getOffTargetScorer() {
+		if(offTargetScorer == null) {
+			logger.info("Loading off target sites from " + OFF_TARGET_BITS + "...");
+			try {
+				offTargetScorer = new GuideOffTargetScore(OFF_TARGET_BITS, GuideOffTargetScore.getModel(OFF_TARGET_CFD_MATRIX, OFF_TARGET_MAX_BULGES));
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Could not read off target weights " + OFF_TARGET_CFD_MATRIX, e);
+			}
+		}
+		return offTargetScorer;
+	}
+	
 	/**
 	 * Find all guide RNA pairs in a window downstream of transcription stop that pass all the downstream pair filters
 	 * @param gene The gene
@@ -462,11 +573,12 @@ public class DoubleNickCRISPRDesigner {
 			ge = new GuideSufficientEfficacy(new GuideEfficacyScore(NickingGuideRNAPair.getIndividualGuideRNAs(allPairs)), MAX_GUIDE_EFFICACY_SCORE);
 		}
 		
-		GuideOffTargetScore scorer = null;
 		if (ENFORCE_MIN_OFF_TARGET_SCORE) {
-			scorer = new GuideOffTargetScore(OFF_TARGET_BITS);
-			for (GuideRNA guide : NickingGuideRNAPair.getIndividualGuideRNAs(allPairs)) {
-				guide.setScore(scorer.getScore(guide));
+			GuideOffTargetScore scorer = getOffTargetScorer();
+			Collection<GuideRNA> guides = NickingGuideRNAPair.getIndividualGuideRNAs(allPairs);
+			Map<String, Double> offTargetScores = scorer.scoreAll(guides, 1, MIN_OFF_TARGET_SCORE);
+			for (GuideRNA guide : guides) {
+				guide.setScore(offTargetScores.get(guide.getSequenceString()).doubleValue());
 			}
 		}
 		
@@ -476,8 +588,10 @@ public class DoubleNickCRISPRDesigner {
 		}
 		Collection<NickingGuideRNAPair> rtrn = new ArrayList<NickingGuideRNAPair>();
 		
-		// Collect restriction enzyme sites downstream of the gene
+		// Collect restriction enzyme sites downstream of the gene and index them once for all pairs
 		Collection<Annotation> restrictionSites = new ArrayList<Annotation>();
+		AnnotationIntervalIndex<Annotation> restrictionSiteIndex = null;
+		GuideProximityToNearestRegion p = null;
 		if(ENFORCE_DOWNSTREAM_PROXIMITY_TO_RESTRICTION_ENZYME) {
 			synchronized (downstreamRestrictionEnzymeCutSitesByGene) {
 				restrictionSites
@@ -489,6 +603,14 @@ public class DoubleNickCRISPRDesigner {
 								.asAnnotations(downstreamRestrictionEnzymeCutSitePairsByGene
 										.get(gene)));
 			}
+			restrictionSiteIndex = new AnnotationIntervalIndex<Annotation>(restrictionSites);
+			p = new GuideProximityToNearestRegion(restrictionSiteIndex, MAX_DIST_TO_RESTRICTION_SITE, "restriction_enzyme");
+		}
+		
+		// Ignore all overlappers of the target gene
+		GuideSufficientIsolation si = null;
+		if(ENFORCE_MIN_DIST_TO_NEAREST_GENE) {
+			si = new GuideSufficientIsolation(annotation, gene, MIN_DIST_TO_NEAREST_GENE, true, "distance_from_nearest_downstream_gene");
 		}
 		
 		for(NickingGuideRNAPair pair : allPairs) {
@@ -499,7 +621,6 @@ public class DoubleNickCRISPRDesigner {
 			
 			if(passes) {
 				if(ENFORCE_DOWNSTREAM_PROXIMITY_TO_RESTRICTION_ENZYME) {
-					GuideProximityToNearestRegion p = new GuideProximityToNearestRegion(restrictionSites, MAX_DIST_TO_RESTRICTION_SITE, "restriction_enzyme");
 					boolean ok = p.evaluate(pair.getLeftGuideRNA()) || p.evaluate(pair.getRightGuideRNA());
 					if(!ok) {
 						passes = false;
@@ -510,8 +631,6 @@ public class DoubleNickCRISPRDesigner {
 			if(passes) {
 				if(ENFORCE_MIN_DIST_TO_NEAREST_GENE) {
 					// Check that the pair is not too close to another gene
-					// Ignore all overlappers of the target gene
-					GuideSufficientIsolation si = new GuideSufficientIsolation(annotation, gene, MIN_DIST_TO_NEAREST_GENE, true, "distance_from_nearest_downstream_gene");
 					if(!si.evaluate(pair.getLeftGuideRNA())) {
 						//logger.debug("LEFT_GUIDE_FAILS_MIN_DIST_TO_NEAREST_GENE\t" + pair.toString());
 						passes = false;
@@ -550,19 +669,17 @@ public class DoubleNickCRISPRDesigner {
 					String bedName = pair.toString() + ":" + getFailureMessageBasicFilters(pair, ge);
 					
 					if(ENFORCE_DOWNSTREAM_PROXIMITY_TO_RESTRICTION_ENZYME) {
-						GuideProximityToNearestRegion p = new GuideProximityToNearestRegion(restrictionSites, MAX_DIST_TO_RESTRICTION_SITE, "proximity_to_restriction_enzyme_site");
-						if(!p.evaluate(pair.getLeftGuideRNA())) {
-							bedName += p.getShortFailureMessage(pair.getLeftGuideRNA()) + ":";
+						GuideProximityToNearestRegion fp = new GuideProximityToNearestRegion(restrictionSiteIndex, MAX_DIST_TO_RESTRICTION_SITE, "proximity_to_restriction_enzyme_site");
+						if(!fp.evaluate(pair.getLeftGuideRNA())) {
+							bedName += fp.getShortFailureMessage(pair.getLeftGuideRNA()) + ":";
 						}
-						if(!p.evaluate(pair.getRightGuideRNA())) {
-							bedName += p.getShortFailureMessage(pair.getRightGuideRNA()) + ":";
+						if(!fp.evaluate(pair.getRightGuideRNA())) {
+							bedName += fp.getShortFailureMessage(pair.getRightGuideRNA()) + ":";
 						}
 					}
 
 					if(ENFORCE_MIN_DIST_TO_NEAREST_GENE) {
 						// Check that the pair is not too close to another gene
-						// Ignore all overlappers of the target gene
-						GuideSufficientIsolation si = new GuideSufficientIsolation(annotation, gene, MIN_DIST_TO_NEAREST_GENE, true, "distance_from_nearest_downstream_gene");
 						if(!si.evaluate(pair.getLeftGuideRNA())) {
 							bedName += si.getShortFailureMessage(pair.getLeftGuideRNA()) + ":";
 						}
@@ -612,11 +729,12 @@ public class DoubleNickCRISPRDesigner {
 			ge = new GuideSufficientEfficacy(new GuideEfficacyScore(NickingGuideRNAPair.getIndividualGuideRNAs(allPairs)), MAX_GUIDE_EFFICACY_SCORE);
 		}
 		
-		GuideOffTargetScore scorer = null;
 		if (ENFORCE_MIN_OFF_TARGET_SCORE) {
-			scorer = new GuideOffTargetScore(OFF_TARGET_BITS);
-			for (GuideRNA guide : NickingGuideRNAPair.getIndividualGuideRNAs(allPairs)) {
-				guide.setScore(scorer.getScore(guide));
+			GuideOffTargetScore scorer = getOffTargetScorer();
+			Collection<GuideRNA> guides = NickingGuideRNAPair.getIndividualGuideRNAs(allPairs);
+			Map<String, Double> offTargetScores = scorer.scoreAll(guides, 1, MIN_OFF_TARGET_SCORE);
+			for (GuideRNA guide : guides) {
+				guide.setScore(offTargetScores.get(guide.getSequenceString()).doubleValue());
 			}
 		}
 				
@@ -719,7 +837,7 @@ public class DoubleNickCRISPRDesigner {
 	/**
 	 * Find all guide RNA pairs in a window downstream of transcription stop
 	 * @param gene Gene
-	 * @return All guide RNA pairs fully contained in the window
+	 * @return All guide RNA pairs fully contained in the window, or only those in double nick configuration if enforced
 	 */
 	private Collection<NickingGuideRNAPair> findAllPossibleGuideRNAsDownstreamOfTranscriptionStop(Gene gene) {
 		Sequence chr = chrsByName.get(gene.getChr());
@@ -734,13 +852,13 @@ public class DoubleNickCRISPRDesigner {
 		int windowStart = Math.min(windowStrandedBegin, windowStrandedEnd);
 		int windowEnd = Math.max(windowStrandedBegin, windowStrandedEnd);
 		logger.debug("DOWNSTREAM_WINDOW\t" + gene.getName() + "\t" + gene.toUCSC() + ":" + gene.getOrientation().toString() + "\tmin_dist=" + MIN_DOWNSTREAM_DISTANCE + "\tmax_dist=" + MAX_DOWNSTREAM_DISTANCE + "\t" + chr.getId() + ":" + windowStart + "-" + windowEnd);
-		return NickingGuideRNAPair.findAll(chr, windowStart, windowEnd, 20, 20, gene);
+		return findAllPairs(chr, windowStart, windowEnd, gene);
 	}
 	
 	/**
 	 * Find all guide RNA pairs in a window upstream of transcription start
 	 * @param gene Gene
-	 * @return All guide RNA pairs fully contained in the window
+	 * @return All guide RNA pairs fully contained in the window, or only those in double nick configuration if enforced
 	 */
 	private Collection<NickingGuideRNAPair> findAllPossibleGuideRNAsUpstreamOfTranscriptionStart(Gene gene) {
 		Sequence chr = chrsByName.get(gene.getChr());
@@ -755,13 +873,24 @@ public class DoubleNickCRISPRDesigner {
 		int windowStart = Math.min(windowStrandedBegin, windowStrandedEnd);
 		int windowEnd = Math.max(windowStrandedBegin, windowStrandedEnd);
 		logger.debug("UPSTREAM_WINDOW\t" + gene.getName() + "\t" + gene.toUCSC() + ":" + gene.getOrientation().toString() + "\tmin_dist=" + MIN_UPSTREAM_DISTANCE + "\tmax_dist=" + MAX_UPSTREAM_DISTANCE + "\t" + chr.getId() + ":" + windowStart + "-" + windowEnd);
-		return NickingGuideRNAPair.findAll(chr, windowStart, windowEnd, 20, 20, gene);
+		return findAllPairs(chr, windowStart, windowEnd, gene);
 	}
 	
 	
 	
 
 	
+	/**
+	 * Get the guide RNA pairs fully contained in a window
+	 * If the double nick configuration is enforced, only pairs in that configuration are built
+	 */
+	private static Collection<NickingGuideRNAPair> findAllPairs(Sequence chr, int windowStart, int windowEnd, Gene gene) {
+		if(ENFORCE_DOUBLE_NICK_CONFIGURATION) {
+			return NickingGuideRNAPair.findAllDoubleNick(chr, windowStart, windowEnd, 20, 20, gene, MAX_INNER_DIST_GUIDE_RNA_PAIRS);
+		}
+		return NickingGuideRNAPair.findAll(chr, windowStart, windowEnd, 20, 20, gene);
+	}
+	
 	private static void validateMinMaxDist(int minDistance, int maxDistance) {
 		/*if(minDistance < 0 || maxDistance < 0) {
 			throw new IllegalArgumentException("Min and max distances must be > 0");
@@ -799,14 +928,22 @@ public class DoubleNickCRISPRDesigner {
 		p.addBooleanArg("-ot", "Enforce minimum off target score", false, ENFORCE_MIN_OFF_TARGET_SCORE);
 		p.addBooleanArg("-ge", "Enforce maximum guide efficacy score", false, ENFORCE_MAX_GUIDE_EFFICACY_SCORE);
 		p.addDoubleArg("-mge", "Max guide efficacy score", false, MAX_GUIDE_EFFICACY_SCORE);
+		p.addBooleanArg("-geR", "Compute guide efficacy score with the original R script instead of in process", false, GuideEfficacyScore.USE_R);
+		p.addStringArg("-geModel", "Saved guide efficacy model to load, or to save to after training if it does not exist", false, null);
+		p.addStringArg("-geCache", "Guide efficacy score store to reuse scores from and add new scores to", false, null);
 		p.addStringArg("-se", "File containing list of restriction enzymes for single cut sites for downstream proximity filter", false, null);
 		p.addStringArg("-pe", "File containing list of restriction enzyme pairs for paired cut sites for downstream proximity filter (line format: left_enzyme right_enzyme)", false, null);
 		p.addBooleanArg("-fp", "For regions with no guide RNA pairs passing all filters, write all failed pairs to bed file", false, WRITE_FAILED_PAIRS_FOR_MISSING_REGIONS);
 		p.addStringArg("-offTargetBits", "File containing bitpacked NGG sites", false, null);
 		p.addIntArg("-minOffTargetScore", "Minimum score in the off target analysis to pass", false, MIN_OFF_TARGET_SCORE);
+		p.addStringArg("-offTargetCfd", "CFD weights to score off target sites with instead of the MIT algorithm; needs -offTargetBits to be an off target index, which records PAMs", false, null);
+		p.addIntArg("-offTargetBulges", "Max bulges per off target site, 0 or 1", false, OFF_TARGET_MAX_BULGES);
+		p.addBooleanArg("-offTargetSeedIndex", "Look up off target candidates in a seed index for large batches of guides instead of scanning every site; the index takes 20 bytes of heap per off target site (several GB for a genome-wide NGG file)", false, GuideOffTargetScore.USE_SEED_INDEX);
 		p.addIntArg("-nbe", "Number of guide RNA pairs to get per cut, sorted by efficacy score", false, NUM_BEST_PAIRS_TO_GET_PER_CUT);
 		p.addStringListArg("-fe", "Restriction enzyme whose recognition sequence cannot appear in any guide RNA sequences (repeatable)", false, null);	
 		p.addIntArg("-nt", "Number of threads", false, 1);
+		p.addBooleanArg("-resume", "Resume from the checkpoint of an interrupted run with the same output prefix and parameters, skipping genes already done", false, false);
+		p.addIntArg("-geneAttempts", "Number of times to try each gene window before skipping the gene", false, MAX_ATTEMPTS_PER_GENE);
 		p.addBooleanArg("-pno", "Pool guide RNA pairs into as few pools of pairwise nonoverlapping guides as possible", false, POOL_NON_OVERLAPPING);
 		p.addStringArg("-lfo", "Left flanking sequence for oligos", true);
 		p.addStringArg("-rfo", "Right flanking sequence for oligos", true);
@@ -824,8 +961,13 @@ public class DoubleNickCRISPRDesigner {
 			GuidePairDoubleNickConfiguration.logger.setLevel(Level.DEBUG);
 			DoubleNickCRISPRDesigner.logger.setLevel(Level.DEBUG);
 			GuideEfficacyScore.logger.setLevel(Level.DEBUG);
+			GuideEfficacySvm.logger.setLevel(Level.DEBUG);
+			EfficacyScoreCache.logger.setLevel(Level.DEBUG);
+			EfficacyScoreBatcher.logger.setLevel(Level.DEBUG);
+			EfficacyScoreRWorker.logger.setLevel(Level.DEBUG);
 			GuideOffTargetScore.log.setLevel(Level.DEBUG);
 			GuideRNA.logger.setLevel(Level.DEBUG);
+			GuidePairCheckpoint.logger.setLevel(Level.DEBUG);
 			NickingGuideRNAPair.logger.setLevel(Level.DEBUG);
 			GuideSufficientIsolation.logger.setLevel(Level.DEBUG);
 		}
@@ -851,17 +993,30 @@ public class DoubleNickCRISPRDesigner {
 		MAX_INNER_DIST_CUT_SITE_PAIRS = p.getIntArg("-maxp");
 		MAX_DIST_TO_RESTRICTION_SITE = p.getIntArg("-maxre");
 		MAX_GUIDE_EFFICACY_SCORE = p.getDoubleArg("-mge");
+		GuideEfficacyScore.USE_R = p.getBooleanArg("-geR");
+		if(p.getStringArg("-geModel") != null) {
+			GuideEfficacySvm.MODEL_FILE = new File(p.getStringArg("-geModel"));
+		}
+		if(p.getStringArg("-geCache") != null) {
+			EfficacyScoreCache.getInstance().open(new File(p.getStringArg("-geCache")));
+		}
 		WRITE_FAILED_PAIRS_FOR_MISSING_REGIONS = p.getBooleanArg("-fp");
 		MAX_INNER_DIST_GUIDE_RNA_PAIRS = p.getIntArg("-maxgp");
 		NUM_BEST_PAIRS_TO_GET_PER_CUT = p.getIntArg("-nbe");
 		POOL_NON_OVERLAPPING = p.getBooleanArg("-pno");
 		OFF_TARGET_BITS = new File(p.getStringArg("-offTargetBits"));
 		MIN_OFF_TARGET_SCORE = p.getIntArg("-minOffTargetScore");
+		if(p.getStringArg("-offTargetCfd") != null) {
+			OFF_TARGET_CFD_MATRIX = new File(p.getStringArg("-offTargetCfd"));
+		}
+		OFF_TARGET_MAX_BULGES = p.getIntArg("-offTargetBulges");
+		GuideOffTargetScore.USE_SEED_INDEX = p.getBooleanArg("-offTargetSeedIndex");
 		String outPrefix = p.getStringArg("-o");
 		String listFileSingleEnzymes = p.getStringArg("-se");
 		String listFilePairedEnzymes = p.getStringArg("-pe");
 		Collection<String> enzymesToAvoid = p.getStringListArg("-fe");
 		int numThreads = p.getIntArg("-nt");
+		MAX_ATTEMPTS_PER_GENE = p.getIntArg("-geneAttempts");
 		
 		validateMinMaxDist(MIN_DOWNSTREAM_DISTANCE, MAX_DOWNSTREAM_DISTANCE);
 		validateMinMaxDist(MIN_UPSTREAM_DISTANCE, MAX_UPSTREAM_DISTANCE);
@@ -886,7 +1041,7 @@ public class DoubleNickCRISPRDesigner {
 			dncd.useRestrictionEnzymes(listFileSingleEnzymes, listFilePairedEnzymes, outPrefix);
 		}
 
-		dncd.findValidPairsAllGenes(numThreads);
+		dncd.findValidPairsAllGenes(numThreads, new File(outPrefix + "_checkpoint.txt"), p.getBooleanArg("-resume"));
 
 		dncd.writeValidGuidePairsAllGenes(outPrefix);
 		
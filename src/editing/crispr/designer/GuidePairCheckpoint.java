@@ -0,0 +1,178 @@
+package editing.crispr.designer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import editing.crispr.GuideRNA;
+import editing.crispr.NickingGuideRNAPair;
+
+import nextgen.core.annotation.BasicAnnotation;
+import nextgen.core.annotation.Gene;
+import nextgen.core.annotation.Annotation.Strand;
+
+/**
+ * Append-only record of the guide RNA pairs found for each gene, so an interrupted design can be resumed
+ * Each finished gene is written as one line per pair followed by a line marking the gene done, and the file is
+ * flushed after every gene. On resume, pairs of genes without a done line (e.g. cut off by a crash) are dropped and
+ * the file is rewritten with only the finished genes before more are appended.
+ * The record does not include the design parameters; resume only with the same parameters.
+ * Line formats (tab separated):
+ * 		pair	gene_key	chr	plus_start	plus_end	plus_sequence_with_PAM	minus_start	minus_end	minus_sequence_with_PAM	pair_score
+ * 		done	gene_key	number_of_pairs
+ */
+public class GuidePairCheckpoint {
+
+	public static Logger logger = Logger.getLogger(GuidePairCheckpoint.class.getName());
+
+	private static final String PAIR = "pair";
+	private static final String DONE = "done";
+
+	private File file;
+	private FileWriter writer;
+	private Map<String, Collection<NickingGuideRNAPair>> pairsByGene = new LinkedHashMap<String, Collection<NickingGuideRNAPair>>();
+
+	/**
+	 * @param checkpointFile The file
+	 * @param resume Whether to read the genes already done from an existing file; otherwise the file is started over
+	 * @param genes Genes of the design; finished genes that are not among them are dropped
+	 * @throws IOException
+	 */
+	public GuidePairCheckpoint(File checkpointFile, boolean resume, Collection<Gene> genes) throws IOException {
+		file = checkpointFile;
+		if(resume && file.exists()) {
+			Map<String, Gene> genesByKey = new HashMap<String, Gene>();
+			for(Gene gene : genes) {
+				genesByKey.put(key(gene), gene);
+			}
+			read(genesByKey);
+			rewrite();
+			logger.info("Resuming from checkpoint " + file + " with " + pairsByGene.size() + " genes already done");
+		}
+		writer = new FileWriter(file, resume);
+	}
+
+	/**
+	 * @param gene Gene
+	 * @return Key identifying the gene in the checkpoint file
+	 */
+	public static String key(Gene gene) {
+		return gene.getName() + ":" + gene.toUCSC() + ":" + gene.getOrientation().toString();
+	}
+
+	/**
+	 * @param gene Gene
+	 * @return The pairs recorded for the gene, or null if the gene is not done
+	 */
+	public Collection<NickingGuideRNAPair> getPairs(Gene gene) {
+		return pairsByGene.get(key(gene));
+	}
+
+	/**
+	 * Record the pairs of a finished gene and flush
+	 * @param gene Gene
+	 * @param pairs All pairs for the gene
+	 * @throws IOException
+	 */
+	public void write(Gene gene, Collection<NickingGuideRNAPair> pairs) throws IOException {
+		writer.write(toString(key(gene), pairs));
+		writer.flush();
+		pairsByGene.put(key(gene), pairs);
+	}
+
+	/**
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		writer.close();
+	}
+
+	private void read(Map<String, Gene> genesByKey) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		Map<String, Collection<NickingGuideRNAPair>> pending = new HashMap<String, Collection<NickingGuideRNAPair>>();
+		int lineNum = 0;
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				lineNum++;
+				String[] fields = line.split("\t");
+				Gene gene = fields.length > 1 ? genesByKey.get(fields[1]) : null;
+				try {
+					if(fields[0].equals(PAIR) && fields.length == 10) {
+						if(gene == null) continue;
+						if(!pending.containsKey(fields[1])) {
+							pending.put(fields[1], new ArrayList<NickingGuideRNAPair>());
+						}
+						pending.get(fields[1]).add(parsePair(fields, gene));
+					} else if(fields[0].equals(DONE) && fields.length == 3) {
+						Collection<NickingGuideRNAPair> pairs = pending.remove(fields[1]);
+						if(pairs == null) {
+							pairs = new ArrayList<NickingGuideRNAPair>();
+						}
+						if(gene != null && pairs.size() == Integer.parseInt(fields[2])) {
+							pairsByGene.put(fields[1], pairs);
+						}
+					} else {
+						logger.warn("Ignoring malformed line " + lineNum + " of checkpoint " + file);
+					}
+				} catch(RuntimeException e) {
+					logger.warn("Ignoring malformed line " + lineNum + " of checkpoint " + file + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		if(!pending.isEmpty()) {
+			logger.warn("Dropping unfinished genes from checkpoint " + file + ": " + pending.keySet());
+		}
+	}
+
+	/**
+	 * Replace the file with the finished genes only, so new records never follow a partly written line
+	 */
+	private void rewrite() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		FileWriter w = new FileWriter(tmp);
+		for(String key : pairsByGene.keySet()) {
+			w.write(toString(key, pairsByGene.get(key)));
+		}
+		w.close();
+		if(!tmp.renameTo(file)) {
+			file.delete();
+			if(!tmp.renameTo(file)) {
+				throw new IOException("Could not replace checkpoint " + file);
+			}
+		}
+	}
+
+	private static NickingGuideRNAPair parsePair(String[] fields, Gene gene) {
+		String chr = fields[2];
+		GuideRNA plus = new GuideRNA(gene, new BasicAnnotation(chr, Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), Strand.POSITIVE), fields[5]);
+		GuideRNA minus = new GuideRNA(gene, new BasicAnnotation(chr, Integer.parseInt(fields[6]), Integer.parseInt(fields[7]), Strand.NEGATIVE), fields[8]);
+		return new NickingGuideRNAPair(plus, minus, gene, Double.parseDouble(fields[9]));
+	}
+
+	private static String toString(String key, Collection<NickingGuideRNAPair> pairs) {
+		StringBuilder sb = new StringBuilder();
+		for(NickingGuideRNAPair pair : pairs) {
+			GuideRNA plus = pair.getPlusStrandGuideRNA();
+			GuideRNA minus = pair.getMinusStrandGuideRNA();
+			sb.append(PAIR).append('\t').append(key).append('\t').append(plus.getChr());
+			sb.append('\t').append(plus.getStart()).append('\t').append(plus.getEnd()).append('\t').append(plus.getSequenceStringWithPAM());
+			sb.append('\t').append(minus.getStart()).append('\t').append(minus.getEnd()).append('\t').append(minus.getSequenceStringWithPAM());
+			sb.append('\t').append(pair.getScore()).append('\n');
+		}
+		sb.append(DONE).append('\t').append(key).append('\t').append(pairs.size()).append('\n');
+		return sb.toString();
+	}
+
+}
@@ -1,5 +1,6 @@
 package editing.crispr.designer;
 
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -13,6 +14,7 @@ import org.apache.log4j.Logger;
 
 import editing.crispr.GuideRNA;
 import editing.crispr.predicate.GuideDoesNotTargetSequences;
+import editing.crispr.score.EfficacyScoreCache;
 import guttmanlab.core.util.CommandLineParser;
 
 import broad.core.sequence.Sequence;
@@ -201,6 +203,7 @@ public class SimpleCRISPRDesigner {
 		
 		p.addBooleanArg("-ge", "Apply guide efficacy filter", false, false);
 		p.addDoubleArg("-gem", "Max guide efficacy if using filter", false, SingleGuideRNAFinder.MAX_GUIDE_EFFICACY_SCORE);
+		p.addStringArg("-gec", "Guide efficacy score store to reuse scores from and add new scores to", false, null);
 		
 		p.addBooleanArg("-got", "Apply guide off target filter (requires off target bits file)", false, false);
 		p.addIntArg("-gotm", "Min guide off target score", false, SingleGuideRNAFinder.MIN_OFF_TARGET_SCORE);
@@ -237,6 +240,7 @@ public class SimpleCRISPRDesigner {
 		
 		boolean efficacyFilter = parser.getBooleanArg("-ge");
 		double maxEfficacyScore = parser.getDoubleArg("-gem");
+		String efficacyCacheFile = parser.getStringArg("-gec");
 		
 		boolean offTargetFilter = parser.getBooleanArg("-got");
 		int minOffTargetScore = parser.getIntArg("-gotm");
@@ -262,6 +266,9 @@ public class SimpleCRISPRDesigner {
 		SingleGuideRNAFinder gfinder = new SingleGuideRNAFinder(genomeFasta);
 		if(efficacyFilter) {
 			gfinder.addEfficacyFilter(maxEfficacyScore);
+			if(efficacyCacheFile != null) {
+				EfficacyScoreCache.getInstance().open(new File(efficacyCacheFile));
+			}
 		}
 		if(offTargetFilter) {
 			if(offTargetBitsFile == null) {
@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 
@@ -16,6 +17,7 @@ import org.apache.log4j.Logger;
 import editing.crispr.GuideRNA;
 import editing.crispr.predicate.GuideDoesNotTargetSequences;
 import editing.crispr.predicate.GuideSufficientEfficacy;
+import editing.crispr.score.EfficacyScoreBatcher;
 import editing.crispr.score.GuideEfficacyScore;
 import editing.crispr.score.GuideOffTargetScore;
 
@@ -37,6 +39,11 @@ public class SingleGuideRNAFinder {
 	private static boolean ENFORCE_MIN_OFF_TARGET_SCORE = false;
 	public static int MIN_OFF_TARGET_SCORE = 30;
 	private static File OFF_TARGET_BITS = null;
+	/**
+	 * Scorer for OFF_TARGET_BITS, kept so its memoized scores are reused across chunks and regions
+	 */
+	private GuideOffTargetScore offTargetScorer = null;
+	private File offTargetScorerFile = null;
 
 	// Guide efficacy filter
 	private static boolean ENFORCE_MAX_GUIDE_EFFICACY_SCORE = false;
@@ -104,6 +111,18 @@ public class SingleGuideRNAFinder {
 		OFF_TARGET_BITS = new File(offTargetBitsFile);
 	}
 	
+	/**
+	 * @return The off target scorer for OFF_TARGET_BITS, created on first use
+	 */
+	private synchronized GuideOffTargetScore getOffTargetScorer() {
+		// OFF_TARGET_BITS is shared by all finders, so another finder may have changed it
+		if(offTargetScorer == null || !OFF_TARGET_BITS.equals(offTargetScorerFile)) {
+			offTargetScorer = new GuideOffTargetScore(OFF_TARGET_BITS);
+			offTargetScorerFile = OFF_TARGET_BITS;
+		}
+		return offTargetScorer;
+	}
+	
 	/**
 	 * Add guide efficacy filter with default max score
 	 */
@@ -145,11 +164,12 @@ public class SingleGuideRNAFinder {
 		}
 		// Apply guide off target filter
 		if (ENFORCE_MIN_OFF_TARGET_SCORE) {
-			GuideOffTargetScore scorer = new GuideOffTargetScore(OFF_TARGET_BITS);
+			GuideOffTargetScore scorer = getOffTargetScorer();
+			Map<String, Double> offTargetScores = scorer.scoreAll(guides, 1, MIN_OFF_TARGET_SCORE);
 			Iterator<GuideRNA> iter = guides.iterator();
 			while(iter.hasNext()) {
 				GuideRNA guide = iter.next();
-				if(scorer.getScore(guide) < MIN_OFF_TARGET_SCORE) {
+				if(offTargetScores.get(guide.getSequenceString()).doubleValue() < MIN_OFF_TARGET_SCORE) {
 					logger.debug("Guide " + guide.toString() + " removed by off target filter.");
 					iter.remove();
 				} else {
@@ -172,6 +192,30 @@ public class SingleGuideRNAFinder {
 		}
 	}
 	
+	/**
+	 * Filter each guide on its own, so a failure only drops the guide it happens on
+	 * @param guides Guides that may have been partly filtered by a failed batch
+	 * @return The guides that pass all filters
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private Collection<GuideRNA> applyFiltersOneAtATime(Collection<GuideRNA> guides) throws IOException, InterruptedException {
+		Collection<GuideRNA> rtrn = new ArrayList<GuideRNA>();
+		for(GuideRNA guide : guides) {
+			Collection<GuideRNA> single = new ArrayList<GuideRNA>();
+			single.add(guide);
+			try {
+				applyFilters(single);
+			} catch(IllegalStateException e) {
+				logger.warn("CAUGHT EXCEPTION, DROPPING GUIDE " + guide.toString());
+				e.printStackTrace();
+				continue;
+			}
+			rtrn.addAll(single);
+		}
+		return rtrn;
+	}
+	
 	/**
 	 * Get filtered set of guide RNAs within the region
 	 * Get a certain number of valid guides
@@ -209,22 +253,30 @@ public class SingleGuideRNAFinder {
 		// Use a hash set so order will be somewhat random
 		HashSet<GuideRNA> guidesHash = new HashSet<GuideRNA>();
 		guidesHash.addAll(guides);
+		List<GuideRNA> candidates = new ArrayList<GuideRNA>(guidesHash);
 		Collection<GuideRNA> rtrn = new ArrayList<GuideRNA>();
-		for(GuideRNA guide : guidesHash) {
-			Collection<GuideRNA> thisGuide = new ArrayList<GuideRNA>();
-			thisGuide.add(guide);
+		// Filter in chunks so each chunk's scores are computed together, doubling the chunk while too few guides pass
+		int maxChunkSize = Math.max(numToGet, EfficacyScoreBatcher.BATCH_SIZE);
+		int chunkSize = Math.max(numToGet, 1);
+		int next = 0;
+		while(next < candidates.size()) {
+			int end = Math.min(candidates.size(), next + Math.max(chunkSize, numToGet - rtrn.size()));
+			Collection<GuideRNA> chunk = new ArrayList<GuideRNA>(candidates.subList(next, end));
+			next = end;
 			try {
-				applyFilters(thisGuide);
+				applyFilters(chunk);
 			} catch(IllegalStateException e) {
-				logger.warn("CAUGHT EXCEPTION");
+				logger.warn("CAUGHT EXCEPTION FILTERING " + chunk.size() + " GUIDES TOGETHER, FILTERING THEM ONE AT A TIME");
 				e.printStackTrace();
+				chunk = applyFiltersOneAtATime(chunk);
 			}
-			if(!thisGuide.isEmpty()) {
-				rtrn.addAll(thisGuide);
-			}
-			if(rtrn.size() >= numToGet) {
-				return rtrn;
+			for(GuideRNA guide : chunk) {
+				rtrn.add(guide);
+				if(rtrn.size() >= numToGet) {
+					return rtrn;
+				}
 			}
+			chunkSize = Math.min(2 * chunkSize, maxChunkSize);
 		}
 		logger.warn("Only found " + rtrn.size() + " valid guide RNAs for region " + region.toUCSC());
 		return rtrn;
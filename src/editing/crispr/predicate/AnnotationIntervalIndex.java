@@ -0,0 +1,237 @@
+package editing.crispr.predicate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nextgen.core.annotation.Annotation;
+
+/**
+ * Immutable index of annotations by chromosome for span overlap and nearest neighbor queries
+ * Each chromosome holds its annotations sorted by start, with an implicit augmented interval tree over the sorted array:
+ * the node at index i on level k covers indices i - 2^k + 1 to i + 2^k - 1 and stores the max end of those annotations.
+ * Overlap queries take O(log n + number found); nearest neighbor queries binary search the sorted starts and a
+ * separately sorted array of ends in O(log n). Queries need no locking and can be shared by any number of threads.
+ * Spans are half-open, start inclusive and end exclusive; blocks are not considered.
+ * @param <T> Annotation type
+ */
+public class AnnotationIntervalIndex<T extends Annotation> {
+
+	/**
+	 * Subtrees with at most this many levels are scanned linearly
+	 */
+	private static final int MIN_TREE_LEVEL = 3;
+
+	private Map<String, Chromosome<T>> chromosomes = new HashMap<String, Chromosome<T>>();
+
+	/**
+	 * @param annotationsByChr Annotations by chromosome name; the collections are copied and not kept
+	 */
+	public AnnotationIntervalIndex(Map<String, ? extends Collection<T>> annotationsByChr) {
+		for(String chr : annotationsByChr.keySet()) {
+			Collection<T> annotations = annotationsByChr.get(chr);
+			if(annotations != null && !annotations.isEmpty()) {
+				chromosomes.put(chr, new Chromosome<T>(annotations));
+			}
+		}
+	}
+
+	/**
+	 * @param annotations Annotations on any chromosomes; the collection is copied and not kept
+	 */
+	public AnnotationIntervalIndex(Collection<T> annotations) {
+		this(byChr(annotations));
+	}
+
+	private static <T extends Annotation> Map<String, Collection<T>> byChr(Collection<T> annotations) {
+		Map<String, Collection<T>> rtrn = new HashMap<String, Collection<T>>();
+		for(T annotation : annotations) {
+			if(!rtrn.containsKey(annotation.getChr())) {
+				rtrn.put(annotation.getChr(), new ArrayList<T>());
+			}
+			rtrn.get(annotation.getChr()).add(annotation);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param chr Chromosome
+	 * @param start Start of the query span, inclusive
+	 * @param end End of the query span, exclusive
+	 * @return Annotations whose span overlaps the query span, in order of start
+	 */
+	public List<T> getOverlappers(String chr, int start, int end) {
+		Chromosome<T> c = chromosomes.get(chr);
+		if(c == null || start >= end) {
+			return Collections.emptyList();
+		}
+		return c.getOverlappers(start, end);
+	}
+
+	/**
+	 * @param region Query region
+	 * @return Annotations whose span overlaps the span of the region, in order of start
+	 */
+	public List<T> getOverlappers(Annotation region) {
+		return getOverlappers(region.getChr(), region.getStart(), region.getEnd());
+	}
+
+	/**
+	 * @param region Query region
+	 * @return Number of bases between the span of the region and the nearest annotation span on the same chromosome that
+	 * does not overlap it, 0 if they are adjacent, or Integer.MAX_VALUE if there is none
+	 */
+	public int distanceToNearestNonOverlapper(Annotation region) {
+		Chromosome<T> c = chromosomes.get(region.getChr());
+		if(c == null) {
+			return Integer.MAX_VALUE;
+		}
+		return c.distanceToNearestNonOverlapper(region.getStart(), region.getEnd());
+	}
+
+	/**
+	 * Annotations of one chromosome in sorted arrays
+	 */
+	private static class Chromosome<T extends Annotation> {
+
+		private T[] annotations;
+		private int[] starts;
+		private int[] ends;
+		/**
+		 * Max end of the subtree rooted at each index
+		 */
+		private int[] maxEnds;
+		/**
+		 * All ends in ascending order, independent of the order of the annotations
+		 */
+		private int[] sortedEnds;
+		private int maxLevel;
+
+		@SuppressWarnings("unchecked")
+		Chromosome(Collection<T> regions) {
+			annotations = (T[]) regions.toArray(new Annotation[regions.size()]);
+			Arrays.sort(annotations, new Comparator<T>() {
+				@Override
+				public int compare(T a, T b) {
+					if(a.getStart() != b.getStart()) return a.getStart() < b.getStart() ? -1 : 1;
+					return a.getEnd() < b.getEnd() ? -1 : (a.getEnd() == b.getEnd() ? 0 : 1);
+				}
+			});
+			int n = annotations.length;
+			starts = new int[n];
+			ends = new int[n];
+			maxEnds = new int[n];
+			for(int i = 0; i < n; i++) {
+				starts[i] = annotations[i].getStart();
+				ends[i] = annotations[i].getEnd();
+			}
+			sortedEnds = Arrays.copyOf(ends, n);
+			Arrays.sort(sortedEnds);
+			// Leaves are the even indices; the last node of each level covers the incomplete right edge of the tree
+			int lastIndex = 0;
+			int lastMax = 0;
+			for(int i = 0; i < n; i += 2) {
+				lastIndex = i;
+				lastMax = ends[i];
+				maxEnds[i] = ends[i];
+			}
+			int k = 1;
+			for(; (1 << k) <= n; k++) {
+				int x = 1 << (k - 1);
+				int step = x << 2;
+				for(int i = (x << 1) - 1; i < n; i += step) {
+					int leftMax = maxEnds[i - x];
+					int rightMax = i + x < n ? maxEnds[i + x] : lastMax;
+					maxEnds[i] = Math.max(ends[i], Math.max(leftMax, rightMax));
+				}
+				lastIndex = ((lastIndex >> k) & 1) != 0 ? lastIndex - x : lastIndex + x;
+				if(lastIndex < n && maxEnds[lastIndex] > lastMax) {
+					lastMax = maxEnds[lastIndex];
+				}
+			}
+			maxLevel = k - 1;
+		}
+
+		int distanceToNearestNonOverlapper(int start, int end) {
+			int rtrn = Integer.MAX_VALUE;
+			// First annotation starting at or after the end of the query
+			int after = firstAtLeast(starts, end);
+			if(after < starts.length) {
+				rtrn = starts[after] - end;
+			}
+			// Last annotation ending at or before the start of the query
+			int before = firstAtLeast(sortedEnds, start + 1) - 1;
+			if(before >= 0) {
+				rtrn = Math.min(rtrn, start - sortedEnds[before]);
+			}
+			return rtrn;
+		}
+
+		/**
+		 * @return Index of the first value at least the key, or the length of the array if there is none
+		 */
+		private static int firstAtLeast(int[] sorted, int key) {
+			int lo = 0;
+			int hi = sorted.length;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(sorted[mid] < key) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		List<T> getOverlappers(int start, int end) {
+			List<T> rtrn = new ArrayList<T>();
+			int n = annotations.length;
+			// Each stack entry is a node: level, index and whether its left subtree has been visited
+			int[] levels = new int[2 * (maxLevel + 2)];
+			int[] nodes = new int[levels.length];
+			boolean[] leftDone = new boolean[levels.length];
+			int top = 0;
+			levels[top] = maxLevel;
+			nodes[top] = (1 << maxLevel) - 1;
+			leftDone[top] = false;
+			top++;
+			while(top > 0) {
+				top--;
+				int k = levels[top];
+				int x = nodes[top];
+				if(k <= MIN_TREE_LEVEL) {
+					int from = (x >> k) << k;
+					int to = Math.min(from + (1 << (k + 1)) - 1, n);
+					for(int i = from; i < to && starts[i] < end; i++) {
+						if(start < ends[i]) rtrn.add(annotations[i]);
+					}
+				} else if(!leftDone[top]) {
+					int left = x - (1 << (k - 1));
+					leftDone[top] = true;
+					top++;
+					if(left >= n || maxEnds[left] > start) {
+						levels[top] = k - 1;
+						nodes[top] = left;
+						leftDone[top] = false;
+						top++;
+					}
+				} else if(x < n && starts[x] < end) {
+					if(start < ends[x]) rtrn.add(annotations[x]);
+					levels[top] = k - 1;
+					nodes[top] = x + (1 << (k - 1));
+					leftDone[top] = false;
+					top++;
+				}
+			}
+			return rtrn;
+		}
+
+	}
+
+}
@@ -5,17 +5,17 @@ import java.util.Collection;
 import editing.crispr.GuideRNA;
 
 import nextgen.core.annotation.Annotation;
-import nextgen.core.annotation.Gene;
 
 
 /**
  * Check whether a guide RNA is within a certain max distance of the nearest region in a collection
  * Does not count regions that overlap the guide RNA
+ * Regions are looked up in a sorted index, so one predicate can check any number of guides in O(log regions) each
  * @author prussell
  */
 public class GuideProximityToNearestRegion implements GuideRNAPredicate {
 
-	private Collection<Annotation> regionSet;
+	private AnnotationIntervalIndex<? extends Annotation> regionIndex;
 	private int maxDistance;
 	private String name;
 	
@@ -25,15 +25,23 @@ public class GuideProximityToNearestRegion implements GuideRNAPredicate {
 	 * @param predicateName Name of this predicate
 	 */
 	public GuideProximityToNearestRegion(Collection<Annotation> regions, int maxDist, String predicateName) {
-		regionSet = regions;
+		this(new AnnotationIntervalIndex<Annotation>(regions), maxDist, predicateName);
+	}
+	
+	/**
+	 * @param regions Index of the regions to consider for distance to the guide RNA, which can be shared by any number of predicates
+	 * @param maxDist Max acceptable distance
+	 * @param predicateName Name of this predicate
+	 */
+	public GuideProximityToNearestRegion(AnnotationIntervalIndex<? extends Annotation> regions, int maxDist, String predicateName) {
+		regionIndex = regions;
 		maxDistance = maxDist;
 		name = predicateName;
 	}
 	
 	@Override
 	public boolean evaluate(GuideRNA g) {
-		Gene asGene = new Gene(g);
-		int nearest = asGene.distanceToNearestNonOverlapper(regionSet);
+		int nearest = regionIndex.distanceToNearestNonOverlapper(g);
 		return nearest <= maxDistance;
 	}
 
@@ -23,9 +23,7 @@ public class GuideSufficientEfficacy implements GuideRNAPredicate {
 	@Override
 	public boolean evaluate(GuideRNA g) {
 		try {
-			synchronized(score) {
-				return score.getScore(g) < maxScore;
-			}
+			return score.getScore(g) < maxScore;
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new IllegalStateException();
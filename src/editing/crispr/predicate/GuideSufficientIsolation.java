@@ -1,8 +1,9 @@
 package editing.crispr.predicate;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
 import nextgen.core.annotation.Annotation.Strand;
@@ -14,11 +15,13 @@ import editing.crispr.GuideRNA;
 
 /**
  * Check whether a guide RNA is sufficiently isolated from a collection of regions
+ * Genes are looked up in an immutable interval index, so evaluation needs no locking and the annotation is never modified
  * @author prussell
  */
 public class GuideSufficientIsolation implements GuideRNAPredicate {
 	
-	private Map<String, Collection<Gene>> genes;
+	private AnnotationIntervalIndex<Gene> genes;
+	private Collection<Gene> ignoredGenes;
 	private int minDistance;
 	public static Logger logger = Logger.getLogger(GuideSufficientIsolation.class.getName());
 	private boolean sameStrand;
@@ -31,72 +34,88 @@ public class GuideSufficientIsolation implements GuideRNAPredicate {
 	 * @param predicateName Name of this predicate
 	 */
 	public GuideSufficientIsolation(Map<String, Collection<Gene>> geneAnnotation, int minDistNearestGene, boolean sameStrandOnly, String predicateName) {
-		this(geneAnnotation, makeCollection(null), minDistNearestGene, sameStrandOnly, predicateName);
+		this(new AnnotationIntervalIndex<Gene>(geneAnnotation), minDistNearestGene, sameStrandOnly, predicateName);
 	}
 	
 	/**
 	 * @param geneAnnotation Full genome annotation
-	 * @param ignoreOverlappersOfTheseGenes Any gene in the gene annotation that overlaps this target gene in any orientation will be ignored for purposes of nearest neighbor
+	 * @param targetGeneToIgnoreOverlappers Any gene in the gene annotation that overlaps this target gene in any orientation will be ignored for purposes of nearest neighbor
 	 * @param minDistNearestGene Min required distance to nearest neighboring gene
 	 * @param sameStrandOnly Only consider genes on the same strand as the target gene of the guide pair
 	 * @param predicateName Name of this predicate
 	 */
 	public GuideSufficientIsolation(Map<String, Collection<Gene>> geneAnnotation, Gene targetGeneToIgnoreOverlappers, int minDistNearestGene, boolean sameStrandOnly, String predicateName) {
-		this(geneAnnotation, makeCollection(targetGeneToIgnoreOverlappers), minDistNearestGene, sameStrandOnly, predicateName);
+		this(new AnnotationIntervalIndex<Gene>(geneAnnotation), targetGeneToIgnoreOverlappers, minDistNearestGene, sameStrandOnly, predicateName);
 	}
 	
 	/**
-	 * @param geneAnnotation Full genome annotation
-	 * @param ignoreOverlappersOfTheseGenes Any gene in the gene annotation that overlaps one of these in any orientation will be ignored for purposes of nearest neighbor
+	 * @param geneIndex Index of the full genome annotation, which can be shared by any number of predicates
+	 * @param minDistNearestGene Min required distance to nearest neighboring gene
+	 * @param sameStrandOnly Only consider genes on the same strand as the target gene of the guide pair
+	 * @param predicateName Name of this predicate
+	 */
+	public GuideSufficientIsolation(AnnotationIntervalIndex<Gene> geneIndex, int minDistNearestGene, boolean sameStrandOnly, String predicateName) {
+		this(geneIndex, new TreeSet<Gene>(), minDistNearestGene, sameStrandOnly, predicateName);
+	}
+	
+	/**
+	 * @param geneIndex Index of the full genome annotation, which can be shared by any number of predicates
+	 * @param targetGeneToIgnoreOverlappers Any gene in the gene annotation that overlaps this target gene in any orientation will be ignored for purposes of nearest neighbor
 	 * @param minDistNearestGene Min required distance to nearest neighboring gene
 	 * @param sameStrandOnly Only consider genes on the same strand as the target gene of the guide pair
 	 * @param predicateName Name of this predicate
 	 */
-	private GuideSufficientIsolation(Map<String, Collection<Gene>> geneAnnotation, Collection<Gene> ignoreOverlappersOfTheseGenes, int minDistNearestGene, boolean sameStrandOnly, String predicateName) {
-		genes = geneAnnotation;
+	public GuideSufficientIsolation(AnnotationIntervalIndex<Gene> geneIndex, Gene targetGeneToIgnoreOverlappers, int minDistNearestGene, boolean sameStrandOnly, String predicateName) {
+		this(geneIndex, getOverlappers(geneIndex, targetGeneToIgnoreOverlappers), minDistNearestGene, sameStrandOnly, predicateName);
+	}
+	
+	/**
+	 * @param geneIndex Index of the full genome annotation, which can be shared by any number of predicates
+	 * @param ignoreGenes Genes of the annotation to ignore for purposes of nearest neighbor
+	 * @param minDistNearestGene Min required distance to nearest neighboring gene
+	 * @param sameStrandOnly Only consider genes on the same strand as the target gene of the guide pair
+	 * @param predicateName Name of this predicate
+	 */
+	public GuideSufficientIsolation(AnnotationIntervalIndex<Gene> geneIndex, Collection<Gene> ignoreGenes, int minDistNearestGene, boolean sameStrandOnly, String predicateName) {
+		genes = geneIndex;
+		ignoredGenes = new TreeSet<Gene>(ignoreGenes);
 		name = predicateName;
 		sameStrand = sameStrandOnly;
-		Map<String, Collection<Gene>> toRemove = new TreeMap<String, Collection<Gene>>();
-		for(Gene ignore : ignoreOverlappersOfTheseGenes) {
-			String chr = ignore.getChr();
-			synchronized(genes) {
-				for(Gene gene : genes.get(chr)) {
-					if(gene.overlaps(ignore, true)) {
-						if(!toRemove.containsKey(chr)) {
-							toRemove.put(chr, new TreeSet<Gene>());
-						}
-						toRemove.get(chr).add(gene);
-					}
-				}
-			}
-		}
-		for(String chr : toRemove.keySet()) {
-			for(Gene gene : toRemove.get(chr)) {
-				synchronized(genes) {
-					genes.get(chr).remove(gene);
-				}
-			}
-		}
 		minDistance = minDistNearestGene;
 	}
 	
-	private static Collection<Gene> makeCollection(Gene gene) {
+	/**
+	 * @param geneIndex Gene index
+	 * @param gene Gene
+	 * @return Genes of the index that overlap the gene in any orientation
+	 */
+	private static Collection<Gene> getOverlappers(AnnotationIntervalIndex<Gene> geneIndex, Gene gene) {
 		Collection<Gene> rtrn = new TreeSet<Gene>();
-		if(gene != null) rtrn.add(gene);
+		for(Gene other : geneIndex.getOverlappers(gene)) {
+			if(other.overlaps(gene, true)) {
+				rtrn.add(other);
+			}
+		}
 		return rtrn;
 	}
 	
 	@Override
 	public boolean evaluate(GuideRNA guideRNA) {
 		String chr = guideRNA.getChr();
-		Collection<Gene> genesThisChr = new TreeSet<Gene>();
-		synchronized(genes) {
-			genesThisChr.addAll(genes.get(chr));
-		}
 		int start = guideRNA.getStart() - minDistance;
 		int end = guideRNA.getEnd() + minDistance;
-		Strand strand = guideRNA.getTargetGene().getOrientation();
-		Collection<Gene> overlappers = Gene.getOverlappers(genesThisChr, chr, start, end, strand, !sameStrand);
+		// The index only narrows the genes down by span; Gene decides what overlaps
+		List<Gene> candidates = new ArrayList<Gene>();
+		for(Gene gene : genes.getOverlappers(chr, start - 1, end + 1)) {
+			if(!ignoredGenes.contains(gene)) {
+				candidates.add(gene);
+			}
+		}
+		Collection<Gene> overlappers = new ArrayList<Gene>();
+		if(!candidates.isEmpty()) {
+			Strand strand = guideRNA.getTargetGene().getOrientation();
+			overlappers = Gene.getOverlappers(candidates, chr, start, end, strand, !sameStrand);
+		}
 		
 		if(!overlappers.isEmpty()) {
 			for(Gene overlapper : overlappers) {
@@ -0,0 +1,183 @@
+package editing.crispr.score;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Cutting frequency determination (CFD) style off target site score: the product of a weight for each mismatch,
+ * looked up by position and substitution, times a weight for the PAM
+ * Weights are read from a tab-separated matrix file, one weight per line, keyed as in the published CFD tables:
+ * 		rA:dC,1	0.857142857		mismatch of guide base A with site base G (complement of dC) at position 1
+ * 		GG	1.0					PAM ending in GG
+ * 		RNA_BULGE,5	0.3			guide base 5 unpaired
+ * 		DNA_BULGE,5	0.3			site base 5 unpaired
+ * Positions run from 1, furthest from the PAM, to 20; U and T are the same guide base. Every mismatch must be listed,
+ * and so must every PAM scored: GG always, and AG for off target indexes that include NAG sites.
+ * Bulges not listed are not scored.
+ * Site scores are 100 times the CFD score so that guide scores aggregate as in the MIT algorithm.
+ */
+public class CfdOffTargetModel implements OffTargetScoringModel {
+
+	public static Logger logger = Logger.getLogger(CfdOffTargetModel.class.getName());
+
+	private static final String BASES = "ACGT";
+	private static final String RNA_BULGE = "RNA_BULGE";
+	private static final String DNA_BULGE = "DNA_BULGE";
+	private static final String NGG = "GG";
+
+	/**
+	 * Weight by position and 4 * guide base code + site base code; 1 where the bases match
+	 */
+	private double[][] mismatchWeights = new double[OffTargetAlignments.GUIDE_LENGTH][16];
+	private double[] rnaBulgeWeights = new double[OffTargetAlignments.GUIDE_LENGTH];
+	private double[] dnaBulgeWeights = new double[OffTargetAlignments.GUIDE_LENGTH];
+	private Map<String, Double> pamWeights = new HashMap<String, Double>();
+	private int maxMismatches;
+	private int maxBulges;
+	private File matrix;
+
+	/**
+	 * @param matrixFile Weights, in the format described above
+	 * @param maxMismatches Max mismatches of a scored site
+	 * @param maxBulges Max bulges per site, 0 or 1
+	 * @throws IOException
+	 */
+	public CfdOffTargetModel(File matrixFile, int maxMismatches, int maxBulges) throws IOException {
+		if (maxBulges < 0 || maxBulges > 1) {
+			throw new IllegalArgumentException("Max bulges must be 0 or 1: " + maxBulges);
+		}
+		this.maxMismatches = maxMismatches;
+		this.maxBulges = maxBulges;
+		matrix = matrixFile;
+		for (int position = 0; position < OffTargetAlignments.GUIDE_LENGTH; position++) {
+			for (int i = 0; i < 16; i++) {
+				mismatchWeights[position][i] = i / 4 == i % 4 ? 1 : Double.NaN;
+			}
+		}
+		readMatrix(matrixFile);
+		for (int position = 0; position < OffTargetAlignments.GUIDE_LENGTH; position++) {
+			for (int i = 0; i < 16; i++) {
+				if (Double.isNaN(mismatchWeights[position][i])) {
+					throw new IllegalArgumentException(matrixFile + " has no weight for guide base " + BASES.charAt(i / 4) + " against site base " + BASES.charAt(i % 4) + " at position " + (position + 1));
+				}
+			}
+		}
+		if (!pamWeights.containsKey(NGG)) {
+			throw new IllegalArgumentException(matrixFile + " has no weight for PAM N" + NGG);
+		}
+		logger.info("Read CFD weights from " + matrixFile);
+	}
+
+	private void readMatrix(File matrixFile) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(matrixFile));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				String[] fields = line.split("\\s+");
+				if (fields.length != 2) {
+					throw new IllegalArgumentException("Line format in " + matrixFile + ": key weight. Bad line: " + line);
+				}
+				String key = fields[0];
+				double weight = Double.parseDouble(fields[1]);
+				int comma = key.indexOf(',');
+				if (comma < 0) {
+					pamWeights.put(key.toUpperCase(), Double.valueOf(weight));
+					continue;
+				}
+				int position = Integer.parseInt(key.substring(comma + 1)) - 1;
+				if (position < 0 || position >= OffTargetAlignments.GUIDE_LENGTH) {
+					throw new IllegalArgumentException("Position out of range in " + matrixFile + ": " + line);
+				}
+				String type = key.substring(0, comma).toUpperCase();
+				if (type.equals(RNA_BULGE)) {
+					rnaBulgeWeights[position] = weight;
+				} else if (type.equals(DNA_BULGE)) {
+					dnaBulgeWeights[position] = weight;
+				} else if (type.length() == 5 && type.charAt(0) == 'R' && type.charAt(2) == ':' && type.charAt(3) == 'D') {
+					int guideCode = BASES.indexOf(type.charAt(1) == 'U' ? 'T' : type.charAt(1));
+					int siteCode = BASES.indexOf(type.charAt(4));
+					if (guideCode < 0 || siteCode < 0) {
+						throw new IllegalArgumentException("Unknown base in " + matrixFile + ": " + line);
+					}
+					// The table gives the target strand base, which pairs with the guide; the site is on the guide's strand
+					siteCode = 3 - siteCode;
+					if (guideCode != siteCode) {
+						mismatchWeights[position][4 * guideCode + siteCode] = weight;
+					}
+				} else {
+					throw new IllegalArgumentException("Unknown key in " + matrixFile + ": " + line);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "cfd";
+	}
+
+	@Override
+	public int getMaxMismatches() {
+		return maxMismatches;
+	}
+
+	@Override
+	public int getMaxBulges() {
+		return maxBulges;
+	}
+
+	@Override
+	public double scoreSite(long guide, long site, int start) {
+		long lanes = OffTargetAlignments.mismatchLanes(guide, site) & OffTargetAlignments.lanes(start, OffTargetAlignments.GUIDE_LENGTH);
+		if (lanes == 0) return Double.POSITIVE_INFINITY;
+		return 100 * mismatchProduct(guide, site, lanes);
+	}
+
+	@Override
+	public double scoreBulge(long guide, long alignedSite, int start, int bulgePosition, boolean dnaBulge) {
+		double weight = dnaBulge ? dnaBulgeWeights[bulgePosition] : rnaBulgeWeights[bulgePosition];
+		if (weight == 0) return 0;
+		long lanes = OffTargetAlignments.mismatchLanes(guide, alignedSite) & OffTargetAlignments.lanes(start, OffTargetAlignments.GUIDE_LENGTH);
+		return 100 * weight * mismatchProduct(guide, alignedSite, lanes);
+	}
+
+	@Override
+	public boolean usesPamWeights() {
+		return true;
+	}
+
+	@Override
+	public double getPamWeight(String pam) {
+		Double weight = pamWeights.get(pam);
+		if (weight == null) {
+			throw new IllegalArgumentException(matrix + " has no weight for PAM N" + pam);
+		}
+		return weight.doubleValue();
+	}
+
+	/**
+	 * @return Product of the mismatch weights, or 0 if there are more than maxMismatches
+	 */
+	private double mismatchProduct(long guide, long site, long lanes) {
+		if (Long.bitCount(lanes) > maxMismatches) return 0;
+		double rtrn = 1;
+		for (; lanes != 0; lanes &= lanes - 1) {
+			int shift = Long.numberOfTrailingZeros(lanes);
+			int guideCode = (int) ((guide >>> shift) & 0x3);
+			int siteCode = (int) ((site >>> shift) & 0x3);
+			rtrn = rtrn * mismatchWeights[shift / 2][4 * guideCode + siteCode];
+		}
+		return rtrn;
+	}
+
+}
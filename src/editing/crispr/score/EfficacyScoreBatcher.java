@@ -0,0 +1,171 @@
+package editing.crispr.score;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import editing.crispr.GuideRNA;
+
+/**
+ * Collects guides whose efficacy scores are not cached and scores them together, so that callers asking for
+ * one score at a time share R launches
+ * A batch is scored as soon as it holds BATCH_SIZE distinct sequences, or once its first guide has waited MAX_WAIT_MS,
+ * by whichever caller gets there first. Every caller waiting on the batch then gets its score.
+ * Scores go through GuideEfficacyScore and so also land in EfficacyScoreCache.
+ */
+public class EfficacyScoreBatcher {
+
+	public static Logger logger = Logger.getLogger(EfficacyScoreBatcher.class.getName());
+
+	/**
+	 * Max number of distinct sequences per batch
+	 */
+	public static int BATCH_SIZE = 512;
+
+	/**
+	 * Max time in milliseconds to wait for a batch to fill before scoring it
+	 */
+	public static long MAX_WAIT_MS = 20;
+
+	private static EfficacyScoreBatcher instance = null;
+
+	private Batch current = new Batch();
+	private GuideEfficacyScore scorer = null;
+
+	private EfficacyScoreBatcher() {}
+
+	/**
+	 * @return The batcher shared by every GuideEfficacyScore in this JVM
+	 */
+	public static synchronized EfficacyScoreBatcher getInstance() {
+		if(instance == null) {
+			instance = new EfficacyScoreBatcher();
+		}
+		return instance;
+	}
+
+	/**
+	 * Get the score of one guide, waiting for the batch it joins to be scored
+	 * @param guide Guide RNA
+	 * @return Efficacy score
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public double getScore(GuideRNA guide) throws IOException, InterruptedException {
+		Double cached = EfficacyScoreCache.getInstance().get(EfficacyScoreCache.key(guide));
+		if(cached != null) {
+			return cached.doubleValue();
+		}
+		Batch batch;
+		boolean full;
+		synchronized(this) {
+			batch = current;
+			batch.add(guide);
+			full = batch.size() >= BATCH_SIZE;
+			if(full) {
+				current = new Batch();
+			}
+		}
+		if(!full) {
+			batch.awaitDeadline();
+			// Score the batch here unless another caller has already taken it
+			synchronized(this) {
+				full = current == batch;
+				if(full) {
+					current = new Batch();
+				}
+			}
+		}
+		if(full) {
+			score(batch);
+		}
+		return batch.get(guide);
+	}
+
+	private void score(Batch batch) {
+		try {
+			logger.debug("Scoring batch of " + batch.size() + " guides");
+			batch.finish(getScorer().scoreAll(batch.getGuides()), null);
+		} catch(Exception e) {
+			batch.finish(null, e);
+		}
+	}
+
+	private synchronized GuideEfficacyScore getScorer() throws IOException, InterruptedException {
+		if(scorer == null) {
+			scorer = new GuideEfficacyScore(new ArrayList<GuideRNA>());
+		}
+		return scorer;
+	}
+
+	/**
+	 * Guides waiting to be scored together, by sequence
+	 */
+	private static class Batch {
+
+		private long created = System.currentTimeMillis();
+		private Map<String, GuideRNA> guides = new LinkedHashMap<String, GuideRNA>();
+		private Map<GuideRNA, Double> scores = null;
+		private Exception failure = null;
+		private boolean done = false;
+
+		/**
+		 * Called with the batcher locked
+		 */
+		void add(GuideRNA guide) {
+			String seq = guide.getSequenceString();
+			if(!guides.containsKey(seq)) {
+				guides.put(seq, guide);
+			}
+		}
+
+		int size() {
+			return guides.size();
+		}
+
+		ArrayList<GuideRNA> getGuides() {
+			return new ArrayList<GuideRNA>(guides.values());
+		}
+
+		synchronized void awaitDeadline() throws InterruptedException {
+			long deadline = created + MAX_WAIT_MS;
+			long now = System.currentTimeMillis();
+			while(!done && now < deadline) {
+				wait(deadline - now);
+				now = System.currentTimeMillis();
+			}
+		}
+
+		synchronized void finish(Map<GuideRNA, Double> batchScores, Exception e) {
+			scores = batchScores;
+			failure = e;
+			done = true;
+			notifyAll();
+		}
+
+		synchronized double get(GuideRNA guide) throws IOException, InterruptedException {
+			while(!done) {
+				wait();
+			}
+			if(failure instanceof IOException) {
+				throw (IOException) failure;
+			}
+			if(failure instanceof InterruptedException) {
+				throw (InterruptedException) failure;
+			}
+			if(failure != null) {
+				throw new IllegalStateException("Could not score guide efficacy", failure);
+			}
+			Double rtrn = scores.get(guides.get(guide.getSequenceString()));
+			if(rtrn == null) {
+				throw new IllegalStateException("No efficacy score for guide " + guide);
+			}
+			return rtrn.doubleValue();
+		}
+
+	}
+
+}
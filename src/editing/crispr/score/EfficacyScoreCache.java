@@ -0,0 +1,317 @@
+package editing.crispr.score;
+
+import java.io.*;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import editing.crispr.GuideRNA;
+import editing.crispr.PackedGuideSequence;
+
+/**
+ * Process-wide cache of guide efficacy scores, which depend only on the 20nt guide sequence
+ * Keys are the 2-bit packed 20mer (see PackedGuideSequence); guides of other lengths or containing N are not cached.
+ * Recently used scores are kept in memory up to CAPACITY entries and evicted least recently used first. The entries are
+ * split by key into SEGMENTS independently locked segments, so lookups from many threads rarely wait on each other.
+ * Optionally backed by a store file, opened with open(): a sorted table of keys and scores that is memory-mapped and
+ * binary searched, so rerunning a design over the same genome skips scoring. Scores added since the store was opened
+ * are merged into it by save(), which also runs on exit.
+ * The cache does not record which model produced a score, so use a separate store for R and in-process scores.
+ */
+public class EfficacyScoreCache {
+
+	public static Logger logger = Logger.getLogger(EfficacyScoreCache.class.getName());
+
+	/**
+	 * Max number of scores kept in memory, not counting the store file
+	 */
+	public static int CAPACITY = 1 << 20;
+
+	/**
+	 * Number of independently locked parts of the in-memory cache, each holding up to CAPACITY / SEGMENTS scores
+	 */
+	public static int SEGMENTS = 64;
+
+	/**
+	 * Returned by key() for guides that can't be cached
+	 */
+	public static final long NO_KEY = -1;
+
+	private static final int GUIDE_LENGTH = 20;
+	private static final long GUIDE_MASK = (1L << (2 * GUIDE_LENGTH)) - 1;
+	private static final long GUIDE_N_MASK = (1L << GUIDE_LENGTH) - 1;
+	private static final byte[] MAGIC = new byte[] {'E', 'F', 'F', 'C', 'A', 'C', 'H', 'E'};
+	private static final int HEADER_BYTES = 16;
+
+	private static EfficacyScoreCache instance = null;
+
+	private List<LinkedHashMap<Long, Double>> segments;
+	private File storeFile = null;
+	/**
+	 * Replaced as a whole when the store is opened or saved, so readers need no lock
+	 */
+	private volatile Store store = null;
+	private TreeMap<Long, Double> added = new TreeMap<Long, Double>();
+	private boolean saveOnExit = false;
+
+	private EfficacyScoreCache(int capacity, int numSegments) {
+		final int segmentCapacity = Math.max(1, capacity / numSegments);
+		segments = new ArrayList<LinkedHashMap<Long, Double>>(numSegments);
+		for(int i = 0; i < numSegments; i++) {
+			segments.add(new LinkedHashMap<Long, Double>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, Double> eldest) {
+					return size() > segmentCapacity;
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return The cache shared by every GuideEfficacyScore in this JVM
+	 */
+	public static synchronized EfficacyScoreCache getInstance() {
+		if(instance == null) {
+			instance = new EfficacyScoreCache(CAPACITY, SEGMENTS);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param guide Guide RNA
+	 * @return Cache key for the guide sequence, or NO_KEY if it is not a 20mer of A, C, G and T
+	 */
+	public static long key(GuideRNA guide) {
+		PackedGuideSequence seq = guide.getPackedSequenceWithPAM();
+		if(!seq.isPacked()) {
+			return key(guide.getSequenceString());
+		}
+		if(seq.length() != GUIDE_LENGTH + GuideRNA.PAM_LENGTH || (seq.getNMask() & GUIDE_N_MASK) != 0) {
+			return NO_KEY;
+		}
+		return seq.getBases() & GUIDE_MASK;
+	}
+
+	/**
+	 * @param guide Guide sequence without PAM, either case
+	 * @return Cache key for the sequence, or NO_KEY if it is not a 20mer of A, C, G and T
+	 */
+	public static long key(String guide) {
+		if(guide.length() != GUIDE_LENGTH) {
+			return NO_KEY;
+		}
+		PackedGuideSequence seq = PackedGuideSequence.pack(guide.toUpperCase());
+		if(!seq.isPacked() || seq.getNMask() != 0) {
+			return NO_KEY;
+		}
+		return seq.getBases();
+	}
+
+	/**
+	 * @param key Key from key()
+	 * @return Cached score, or null if not cached
+	 */
+	public Double get(long key) {
+		if(key == NO_KEY) {
+			return null;
+		}
+		Long k = Long.valueOf(key);
+		LinkedHashMap<Long, Double> segment = segment(key);
+		Double rtrn;
+		synchronized(segment) {
+			rtrn = segment.get(k);
+		}
+		if(rtrn != null) {
+			return rtrn;
+		}
+		Store s = store;
+		if(s != null) {
+			int i = s.find(key);
+			if(i >= 0) {
+				rtrn = Double.valueOf(s.scores.get(i));
+				synchronized(segment) {
+					segment.put(k, rtrn);
+				}
+			}
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param key Key from key(); ignored if NO_KEY
+	 * @param score Score
+	 */
+	public void put(long key, double score) {
+		if(key == NO_KEY) {
+			return;
+		}
+		Long k = Long.valueOf(key);
+		Double s = Double.valueOf(score);
+		LinkedHashMap<Long, Double> segment = segment(key);
+		synchronized(segment) {
+			segment.put(k, s);
+		}
+		synchronized(this) {
+			if(storeFile != null && (store == null || store.find(key) < 0)) {
+				added.put(k, s);
+			}
+		}
+	}
+
+	private LinkedHashMap<Long, Double> segment(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return segments.get((int) ((h >>> 32) % segments.size()));
+	}
+
+	/**
+	 * Back the cache with a store file, which is created on save if it does not exist
+	 * Scores added before this call are not saved.
+	 * @param file Store file
+	 * @throws IOException
+	 */
+	public synchronized void open(File file) throws IOException {
+		storeFile = file;
+		added.clear();
+		store = null;
+		if(file.exists()) {
+			store = map(file);
+			logger.info("Opened efficacy score store " + file + " with " + store.size() + " scores");
+		}
+		if(!saveOnExit) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					try {
+						save();
+					} catch (IOException e) {
+						logger.error("Could not save efficacy score store " + storeFile + ": " + e.getMessage());
+					}
+				}
+			});
+			saveOnExit = true;
+		}
+	}
+
+	/**
+	 * Merge scores added since the store was opened into the store file
+	 * Written to a temporary file first, then renamed over the store.
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		if(storeFile == null || added.isEmpty()) {
+			return;
+		}
+		LongBuffer storedKeys = store == null ? null : store.keys;
+		DoubleBuffer storedScores = store == null ? null : store.scores;
+		int numStored = storedKeys == null ? 0 : storedKeys.limit();
+		long[] keys = new long[numStored + added.size()];
+		double[] scores = new double[keys.length];
+		// Both sources are sorted and disjoint, so merge them
+		int n = 0;
+		int i = 0;
+		for(Long k : added.keySet()) {
+			while(i < numStored && storedKeys.get(i) < k.longValue()) {
+				keys[n] = storedKeys.get(i);
+				scores[n++] = storedScores.get(i++);
+			}
+			keys[n] = k.longValue();
+			scores[n++] = added.get(k).doubleValue();
+		}
+		while(i < numStored) {
+			keys[n] = storedKeys.get(i);
+			scores[n++] = storedScores.get(i++);
+		}
+
+		File tmp = File.createTempFile("efficacy", ".tmp", storeFile.getAbsoluteFile().getParentFile());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		out.write(MAGIC);
+		out.writeLong(n);
+		for(int j = 0; j < n; j++) {
+			out.writeLong(keys[j]);
+		}
+		for(int j = 0; j < n; j++) {
+			out.writeDouble(scores[j]);
+		}
+		out.close();
+		if(!tmp.renameTo(storeFile)) {
+			storeFile.delete();
+			if(!tmp.renameTo(storeFile)) {
+				tmp.delete();
+				throw new IOException("Could not replace " + storeFile);
+			}
+		}
+		logger.info("Saved " + added.size() + " new scores to efficacy score store " + storeFile + " (" + n + " total)");
+		added.clear();
+		store = map(storeFile);
+	}
+
+	/**
+	 * Map a store file: magic, long number of scores, the sorted keys, then the scores in the same order (big-endian)
+	 */
+	private static Store map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			raf.readFully(magic);
+			if(!Arrays.equals(magic, MAGIC)) {
+				throw new IllegalArgumentException(file + " is not an efficacy score store");
+			}
+			long n = raf.readLong();
+			FileChannel channel = raf.getChannel();
+			LongBuffer keys = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, 8 * n).asLongBuffer();
+			DoubleBuffer scores = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + 8 * n, 8 * n).asDoubleBuffer();
+			return new Store(keys, scores);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Mapped store contents; only absolute reads are used, so it can be read from many threads
+	 */
+	private static class Store {
+
+		final LongBuffer keys;
+		final DoubleBuffer scores;
+
+		Store(LongBuffer keys, DoubleBuffer scores) {
+			this.keys = keys;
+			this.scores = scores;
+		}
+
+		int size() {
+			return keys.limit();
+		}
+
+		/**
+		 * @return Index of the key, or -1 if absent
+		 */
+		int find(long key) {
+			int lo = 0;
+			int hi = keys.limit() - 1;
+			while(lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				long k = keys.get(mid);
+				if(k < key) {
+					lo = mid + 1;
+				} else if(k > key) {
+					hi = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+			return -1;
+		}
+
+	}
+
+}
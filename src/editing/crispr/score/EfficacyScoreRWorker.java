@@ -0,0 +1,204 @@
+package editing.crispr.score;
+
+import java.io.*;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Long-running R process that trains Tim Wang's efficacy model once and then scores batches sent over its stdin
+ * Protocol: the worker prints READY once trained. Each request is a line with the number of guides n, then n lines of
+ * tab-separated one-hot features in the training set's column order; the worker answers with n lines, the probability
+ * of class 1 for each guide in order. Closing stdin ends the worker.
+ * The script and training file are deleted as soon as the worker is ready, and a shutdown hook stops the worker.
+ * A worker that fails is stopped and dropped, so the next call to getInstance() starts a fresh one.
+ */
+public class EfficacyScoreRWorker {
+
+	public static Logger logger = Logger.getLogger(EfficacyScoreRWorker.class.getName());
+
+	private static final String READY = "READY";
+	private static EfficacyScoreRWorker instance = null;
+
+	private Process proc;
+	private BufferedWriter toR;
+	private BufferedReader fromR;
+
+	private EfficacyScoreRWorker() throws IOException {
+		File trainingFile = File.createTempFile("guide_efficacy_score_training_set", ".txt");
+		File script = File.createTempFile("guide_efficacy_score_worker", ".R");
+		boolean ready = false;
+		try {
+			FileWriter w = new FileWriter(trainingFile);
+			GuideEfficacyScore.writeTrainingSet(w);
+			w.close();
+			writeScript(script, trainingFile);
+
+			logger.info("Starting R worker for guide efficacy scores...");
+			proc = new ProcessBuilder("R", "--slave", "--no-save", "-f", script.getAbsolutePath()).start();
+			toR = new BufferedWriter(new OutputStreamWriter(proc.getOutputStream()));
+			fromR = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+			drainErrors(proc.getErrorStream());
+
+			String line;
+			while((line = fromR.readLine()) != null && !line.equals(READY)) {
+				logger.debug("R worker: " + line);
+			}
+			if(line == null) {
+				throw new IllegalStateException("R worker exited before it was ready. See logger output for details.");
+			}
+			ready = true;
+			logger.info("R worker ready.");
+		} finally {
+			trainingFile.delete();
+			script.delete();
+			if(!ready && proc != null) {
+				proc.destroy();
+			}
+		}
+	}
+
+	/**
+	 * @return The worker for this JVM, started on first use
+	 * @throws IOException
+	 */
+	public static synchronized EfficacyScoreRWorker getInstance() throws IOException {
+		if(instance == null) {
+			final EfficacyScoreRWorker worker = new EfficacyScoreRWorker();
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					worker.stop();
+				}
+			});
+			instance = worker;
+		}
+		return instance;
+	}
+
+	/**
+	 * Forget a failed worker so the next call to getInstance() starts a new one
+	 * @param worker The failed worker
+	 */
+	private static synchronized void discard(EfficacyScoreRWorker worker) {
+		if(instance == worker) {
+			instance = null;
+		}
+	}
+
+	/**
+	 * Score a batch of guides
+	 * If anything goes wrong the worker is stopped and discarded, since unread answers could otherwise be taken as
+	 * the scores of the next batch
+	 * @param guides 20nt guide sequences
+	 * @return Scores in the same order
+	 * @throws IOException
+	 */
+	public synchronized double[] score(List<String> guides) throws IOException {
+		boolean ok = false;
+		try {
+			double[] rtrn = request(guides);
+			ok = true;
+			return rtrn;
+		} finally {
+			if(!ok) {
+				logger.warn("Stopping R worker after a failed request.");
+				stop();
+				discard(this);
+			}
+		}
+	}
+
+	private double[] request(List<String> guides) throws IOException {
+		StringBuilder request = new StringBuilder();
+		request.append(guides.size()).append('\n');
+		for(String guide : guides) {
+			GuideEfficacyFeatures.appendRow(request, GuideEfficacyFeatures.pack(guide));
+			request.append('\n');
+		}
+		toR.write(request.toString());
+		toR.flush();
+
+		double[] rtrn = new double[guides.size()];
+		for(int i = 0; i < rtrn.length; i++) {
+			String line = fromR.readLine();
+			if(line == null) {
+				throw new IOException("R worker exited while scoring. See logger output for details.");
+			}
+			rtrn[i] = Double.parseDouble(line.trim());
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Close the worker's stdin so it exits, and make sure it is gone
+	 */
+	synchronized void stop() {
+		try {
+			toR.close();
+		} catch(IOException e) {
+			logger.debug("Could not close R worker input: " + e.getMessage());
+		}
+		proc.destroy();
+	}
+
+	/**
+	 * Log the worker's stderr so it never blocks on a full pipe
+	 */
+	private static void drainErrors(final InputStream err) {
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				BufferedReader b = new BufferedReader(new InputStreamReader(err));
+				try {
+					String line;
+					while((line = b.readLine()) != null) {
+						logger.debug("R worker stderr: " + line);
+					}
+					b.close();
+				} catch(IOException e) {
+					logger.debug("Stopped reading R worker stderr: " + e.getMessage());
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Same model as GuideEfficacyScore's R script, followed by a loop serving requests from stdin
+	 */
+	private static void writeScript(File outFile, File trainingFile) throws IOException {
+		logger.debug("Writing R worker script to file " + outFile);
+		FileWriter w = new FileWriter(outFile);
+		w.write("suppressMessages(library(e1071))\n");
+		w.write("suppressMessages(library(limma))\n");
+		w.write("\n");
+		w.write("RMA=read.delim(\"" + trainingFile.getAbsolutePath() + "\", header = TRUE, row.names = 1)\n");
+		w.write("negative=-1.6\n");
+		w.write("myrows=c(6:85)\n");
+		w.write("totalclasses=array(1,dim(RMA)[1])\n");
+		w.write("totalclasses[which(negative>RMA$l2fc)]=-1\n");
+		w.write("\n");
+		w.write("predictor<-svm( as.matrix(RMA[,myrows]), as.factor(totalclasses),probability=T)\n");
+		w.write("features=colnames(RMA)[myrows]\n");
+		w.write("con=file(\"stdin\")\n");
+		w.write("open(con)\n");
+		w.write("cat(\"" + READY + "\\n\")\n");
+		w.write("flush(stdout())\n");
+		w.write("repeat {\n");
+		w.write("\theader=readLines(con, n=1)\n");
+		w.write("\tif(length(header) == 0) break\n");
+		w.write("\tn=as.integer(header)\n");
+		w.write("\tif(n == 0) next\n");
+		w.write("\tlines=readLines(con, n=n)\n");
+		w.write("\tset1=matrix(as.numeric(unlist(strsplit(lines, \"\\t\"))), nrow=n, byrow=TRUE)\n");
+		w.write("\tcolnames(set1)=features\n");
+		w.write("\tset1.pred <- slot(predict(predictor, set1,probability=T),\"probabilities\")[,2]\n");
+		w.write("\tcat(paste(sprintf(\"%.15g\", set1.pred), \"\\n\", sep=\"\"), sep=\"\")\n");
+		w.write("\tflush(stdout())\n");
+		w.write("}\n");
+		w.close();
+	}
+
+}
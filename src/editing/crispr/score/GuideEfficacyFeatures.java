@@ -0,0 +1,99 @@
+package editing.crispr.score;
+
+/**
+ * One-hot features of the guide efficacy model, computed from a packed 20mer
+ * Packed guides use the same 2-bit layout as PackedGuideSequence and EfficacyScoreCache keys: base i in bits 2i
+ * and 2i+1, A=0, C=1, G=2, T=3. Features follow the training set's column order, A, C, T, G for each position,
+ * so exactly one of the four features of each position is set and a guide is fully described by 20 feature indices.
+ */
+public final class GuideEfficacyFeatures {
+
+	public static final int GUIDE_LENGTH = 20;
+	public static final int NUM_FEATURES = 4 * GUIDE_LENGTH;
+
+	/**
+	 * Column within a position for each 2-bit base code
+	 */
+	private static final int[] COLUMN = new int[] {0, 1, 3, 2};
+
+	private GuideEfficacyFeatures() {}
+
+	/**
+	 * @param guide 20nt guide sequence, either case
+	 * @return Packed guide
+	 */
+	public static long pack(String guide) {
+		if(guide.length() != GUIDE_LENGTH) {
+			throw new IllegalArgumentException("Guide efficacy score not trained on sgRNAs of length other than 20");
+		}
+		long rtrn = 0;
+		for(int i = 0; i < GUIDE_LENGTH; i++) {
+			long code;
+			char b = guide.charAt(i);
+			switch(b) {
+			case 'A': case 'a': code = 0; break;
+			case 'C': case 'c': code = 1; break;
+			case 'G': case 'g': code = 2; break;
+			case 'T': case 't': code = 3; break;
+			default:
+				throw new IllegalArgumentException("Can't process char: " + b + " at position " + i + " in sequence " + guide);
+			}
+			rtrn |= code << (2 * i);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param packedGuide Packed guide
+	 * @param position Position in the guide
+	 * @return 2-bit code of the base at the position
+	 */
+	public static int baseCode(long packedGuide, int position) {
+		return (int) ((packedGuide >>> (2 * position)) & 0x3);
+	}
+
+	/**
+	 * @param packedGuide Packed guide
+	 * @param position Position in the guide
+	 * @return Index of the feature that is set for the position
+	 */
+	public static int activeFeature(long packedGuide, int position) {
+		return 4 * position + COLUMN[baseCode(packedGuide, position)];
+	}
+
+	/**
+	 * @param code 2-bit base code
+	 * @return Column of the base within a position, in the training set's order
+	 */
+	public static int column(int code) {
+		return COLUMN[code];
+	}
+
+	/**
+	 * @param packedGuide Packed guide
+	 * @return The 80 one-hot features
+	 */
+	public static double[] toVector(long packedGuide) {
+		double[] rtrn = new double[NUM_FEATURES];
+		for(int i = 0; i < GUIDE_LENGTH; i++) {
+			rtrn[activeFeature(packedGuide, i)] = 1;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Append the features as tab-separated 0s and 1s, without a line break
+	 * @param sb Builder to append to
+	 * @param packedGuide Packed guide
+	 */
+	public static void appendRow(StringBuilder sb, long packedGuide) {
+		for(int i = 0; i < GUIDE_LENGTH; i++) {
+			int column = COLUMN[baseCode(packedGuide, i)];
+			for(int k = 0; k < 4; k++) {
+				if(i > 0 || k > 0) sb.append('\t');
+				sb.append(k == column ? '1' : '0');
+			}
+		}
+	}
+
+}
@@ -7,12 +7,20 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 
 import nextgen.core.pipeline.util.OGSUtils;
@@ -25,20 +33,52 @@ import guttmanlab.core.util.StringParser;
 
 /**
  * Guide RNA score based on Tim Wang's efficacy measure
- * Uses an R script written by Tim
- * Must have R installed along with the e1071 and limma libraries
+ * By default the model is evaluated in process by GuideEfficacySvm
+ * Set USE_R to use the R script written by Tim instead, which must have R installed along with the e1071 and limma libraries
+ * Scores are shared between instances through EfficacyScoreCache, so each distinct 20mer is scored once per process
  * @author prussell
  */
 public class GuideEfficacyScore implements GuideRNAScore {
 
 	public static Logger logger = Logger.getLogger(GuideEfficacyScore.class.getName());
-	private String script;
-	private String trainingFile;
-	private Map<GuideRNA, Double> scores;
+	/**
+	 * Score with the original R script rather than GuideEfficacySvm
+	 */
+	public static boolean USE_R = false;
+	/**
+	 * With USE_R, score through one long-running R process (EfficacyScoreRWorker) rather than running the script once per batch
+	 */
+	public static boolean R_WORKER = true;
+	private static String script = null;
+	private static String trainingFile = null;
+	/**
+	 * Score of each guide seen by this object; read without locking, and a missing score is computed once by whichever caller adds it
+	 */
+	private ConcurrentMap<GuideRNA, Future<Double>> scores;
 	private static String tmpDir = "tmp_efficacy_score_scripts";
 	
 	public GuideEfficacyScore(Collection<GuideRNA> sgRNAs) throws IOException, InterruptedException {
 		
+		if(USE_R && !R_WORKER) {
+			writeScriptFiles();
+		}
+
+		// Score the initially provided sgRNAs
+		Map<GuideRNA, Double> initialScores = scoreSequences(sgRNAs);
+		scores = new ConcurrentHashMap<GuideRNA, Future<Double>>(Math.max(16, 2 * initialScores.size()));
+		for(GuideRNA guideRNA : initialScores.keySet()) {
+			scores.put(guideRNA, completed(initialScores.get(guideRNA)));
+		}
+	}
+	
+	/**
+	 * Write the training file and R script once per JVM, with one shutdown hook to delete them
+	 * @throws IOException
+	 */
+	private static synchronized void writeScriptFiles() throws IOException {
+		if(script != null) {
+			return;
+		}
 		File dirFile = new File(tmpDir);
 		@SuppressWarnings("unused")
 		boolean m = dirFile.mkdir();
@@ -46,68 +86,116 @@ public class GuideEfficacyScore implements GuideRNAScore {
 		// Write the training file
 		trainingFile = tmpDir + "/guide_efficacy_score_training_set";
 		writeTrainingFile(trainingFile);
-		// Attach shutdown hook to delete file when done
-		Runtime.getRuntime().addShutdownHook(new Thread() {
-			@Override
-			public void run() {
-				OGSUtils.deleteScriptFile(new File(trainingFile));					
-			}
-		});
 
 		// Write the script file
 		script = tmpDir + "/guide_efficacy_score_script_" + Long.valueOf(System.currentTimeMillis()).toString() + ".R";
 		writeRScript(script);
-		// Attach shutdown hook to delete R script when done
+		
+		// Attach shutdown hook to delete files when done
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
 			public void run() {
-				OGSUtils.deleteScriptFile(new File(script));					
+				OGSUtils.deleteScriptFile(new File(trainingFile));
+				OGSUtils.deleteScriptFile(new File(script));
 			}
 		});
-
-		// Score the initially provided sgRNAs
-		scores = scoreSequences(sgRNAs);
 	}
 	
-	private Map<GuideRNA, Double> scoreSequences(Collection<GuideRNA> sequences) throws IOException, InterruptedException {
-		
-		// Create an input file for the R script
-		final String inputFile = tmpDir + "/guide_efficacy_score_input_" + Long.valueOf(System.currentTimeMillis()).toString();
-		writeScriptInputFile(sequences, inputFile);
+	/**
+	 * Score guides, taking scores from the shared EfficacyScoreCache where possible and adding new scores to it
+	 * @param sequences Guide RNAs
+	 * @return Score of each guide RNA
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static Map<GuideRNA, Double> scoreSequences(Collection<GuideRNA> sequences) throws IOException, InterruptedException {
 		
-		// Attach shutdown hook to delete file when done
-		Runtime.getRuntime().addShutdownHook(new Thread() {
-			@Override
-			public void run() {
-				OGSUtils.deleteScriptFile(new File(inputFile));					
+		EfficacyScoreCache cache = EfficacyScoreCache.getInstance();
+		Map<GuideRNA, Double> rtrn = new HashMap<GuideRNA, Double>();
+		Collection<GuideRNA> toScore = new ArrayList<GuideRNA>();
+		for(GuideRNA seq : sequences) {
+			Double cached = cache.get(EfficacyScoreCache.key(seq));
+			if(cached != null) {
+				rtrn.put(seq, cached);
+			} else {
+				toScore.add(seq);
 			}
-		});
-		
-		// Run the R script
-		final String outputFile = tmpDir + "/guide_efficacy_score_output_" + Long.valueOf(System.currentTimeMillis()).toString() + ".R";
-		runScript(inputFile, outputFile);
+		}
+		if(toScore.isEmpty()) {
+			return rtrn;
+		}
+		logger.debug("Scoring " + toScore.size() + " of " + sequences.size() + " guides not in cache");
 		
-		// Attach shutdown hook to delete file when done
-		Runtime.getRuntime().addShutdownHook(new Thread() {
-			@Override
-			public void run() {
-				OGSUtils.deleteScriptFile(new File(outputFile));					
+		Map<GuideRNA, Double> scored = USE_R ? scoreWithR(toScore) : scoreInProcess(toScore);
+		for(GuideRNA seq : toScore) {
+			Double score = scored.get(seq);
+			if(score != null) {
+				cache.put(EfficacyScoreCache.key(seq), score.doubleValue());
 			}
-		});
+			rtrn.put(seq, score);
+		}
+		return rtrn;
 		
-		// Read in the output
+	}
+	
+	private static Map<GuideRNA, Double> scoreInProcess(Collection<GuideRNA> sequences) throws IOException {
+		GuideEfficacySvm model = GuideEfficacySvm.getDefault();
 		Map<GuideRNA, Double> rtrn = new HashMap<GuideRNA, Double>();
-		Map<String, Double> scoresBySeq = readScriptOutput(outputFile);
 		for(GuideRNA seq : sequences) {
-			rtrn.put(seq, scoresBySeq.get(seq.getSequence().getSequenceBases()));
-			logger.debug("Read in guide\t" + seq.getSequence().getSequenceBases() + "\tscore\t" + rtrn.get(seq));
+			// The cache key is the packed 20mer, which the model reads directly
+			long packed = EfficacyScoreCache.key(seq);
+			double score = packed != EfficacyScoreCache.NO_KEY ? model.score(packed) : model.score(seq.getSequenceString());
+			rtrn.put(seq, Double.valueOf(score));
 		}
-		
 		return rtrn;
+	}
+	
+	private static Map<GuideRNA, Double> scoreWithR(Collection<GuideRNA> sequences) throws IOException, InterruptedException {
+		
+		if(R_WORKER) {
+			List<GuideRNA> guides = new ArrayList<GuideRNA>(sequences);
+			List<String> seqs = new ArrayList<String>();
+			for(GuideRNA seq : guides) {
+				if(seq.getSequenceString().length() != 20) {
+					throw new IllegalArgumentException("Guide efficacy score not trained on sgRNAs of length other than 20");
+				}
+				seqs.add(seq.getSequenceString());
+			}
+			double[] batchScores = EfficacyScoreRWorker.getInstance().score(seqs);
+			Map<GuideRNA, Double> rtrn = new HashMap<GuideRNA, Double>();
+			for(int i = 0; i < guides.size(); i++) {
+				rtrn.put(guides.get(i), Double.valueOf(batchScores[i]));
+			}
+			return rtrn;
+		}
+		
+		writeScriptFiles();
+		
+		// Input and output files for the R script, deleted as soon as the output is read
+		File inputFile = File.createTempFile("guide_efficacy_score_input_", "", new File(tmpDir));
+		File outputFile = File.createTempFile("guide_efficacy_score_output_", "", new File(tmpDir));
+		try {
+			writeScriptInputFile(sequences, inputFile.getPath());
+			
+			// Run the R script
+			runScript(inputFile.getPath(), outputFile.getPath());
+			
+			// Read in the output
+			Map<GuideRNA, Double> rtrn = new HashMap<GuideRNA, Double>();
+			Map<String, Double> scoresBySeq = readScriptOutput(outputFile.getPath());
+			for(GuideRNA seq : sequences) {
+				rtrn.put(seq, scoresBySeq.get(seq.getSequence().getSequenceBases()));
+				logger.debug("Read in guide\t" + seq.getSequence().getSequenceBases() + "\tscore\t" + rtrn.get(seq));
+			}
+			return rtrn;
+		} finally {
+			inputFile.delete();
+			outputFile.delete();
+		}
 		
 	}
 	
-	private void runScript(String inputFile, String outputFile) throws IOException, InterruptedException {
+	private static void runScript(String inputFile, String outputFile) throws IOException, InterruptedException {
 		String cmmd = "R --slave --no-save -f " + script + " --args " + inputFile + " " + outputFile;
 		logger.debug("Running R command " + cmmd);
 		Process proc = Runtime.getRuntime().exec(cmmd);
@@ -126,7 +214,7 @@ public class GuideEfficacyScore implements GuideRNAScore {
 		}
 	}
 	
-	private Map<String, Double> readScriptOutput(String file) throws IOException {
+	private static Map<String, Double> readScriptOutput(String file) throws IOException {
 		logger.debug("Reading script output from " + file);
 		Map<String, Double> rtrn = new TreeMap<String, Double>();
 		FileReader r = new FileReader(file);
@@ -151,21 +239,75 @@ public class GuideEfficacyScore implements GuideRNAScore {
 	}
 	
 	@Override
-	public double getScore(GuideRNA guideRNA) throws IOException, InterruptedException {
-		synchronized(scores) {
-			synchronized(guideRNA) {
-				if(!scores.containsKey(guideRNA)) {
-					logger.warn("Running R script again because score object was not initialized to include guide RNA " + guideRNA);
-					logger.warn("For efficiency, initialize score object with all guide RNAs of interest");
-					Collection<GuideRNA> thisRNA = new ArrayList<GuideRNA>();
-					thisRNA.add(guideRNA);
-					Map<GuideRNA, Double> thisScore = scoreSequences(thisRNA);
-					double score = thisScore.get(guideRNA);
-					scores.put(guideRNA, Double.valueOf(score));
+	public double getScore(final GuideRNA guideRNA) throws IOException, InterruptedException {
+		Future<Double> score = scores.get(guideRNA);
+		if(score == null) {
+			FutureTask<Double> task = new FutureTask<Double>(new Callable<Double>() {
+				@Override
+				public Double call() throws IOException, InterruptedException {
+					return Double.valueOf(computeScore(guideRNA));
 				}
-				return scores.get(guideRNA).doubleValue();
+			});
+			score = scores.putIfAbsent(guideRNA, task);
+			if(score == null) {
+				score = task;
+				task.run();
+			}
+		}
+		try {
+			return score.get().doubleValue();
+		} catch(ExecutionException e) {
+			// Let a later call try again
+			scores.remove(guideRNA, score);
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) {
+				throw (IOException) cause;
 			}
+			if(cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			}
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+	
+	/**
+	 * Score a guide that this object was not constructed with
+	 */
+	private static double computeScore(GuideRNA guideRNA) throws IOException, InterruptedException {
+		if(!USE_R) {
+			Collection<GuideRNA> thisRNA = new ArrayList<GuideRNA>();
+			thisRNA.add(guideRNA);
+			return scoreSequences(thisRNA).get(guideRNA).doubleValue();
+		}
+		// Share an R launch with other callers
+		if(EfficacyScoreCache.getInstance().get(EfficacyScoreCache.key(guideRNA)) == null) {
+			logger.warn("Running R script again because score object was not initialized to include guide RNA " + guideRNA);
+			logger.warn("For efficiency, initialize score object with all guide RNAs of interest");
 		}
+		return EfficacyScoreBatcher.getInstance().getScore(guideRNA);
+	}
+	
+	private static Future<Double> completed(Double score) {
+		FutureTask<Double> rtrn = new FutureTask<Double>(new Runnable() {
+			@Override
+			public void run() {}
+		}, score);
+		rtrn.run();
+		return rtrn;
+	}
+	
+	/**
+	 * Score a collection of guides together, with one R launch if using R
+	 * @param sequences Guide RNAs
+	 * @return Score of each guide RNA
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public Map<GuideRNA, Double> scoreAll(Collection<GuideRNA> sequences) throws IOException, InterruptedException {
+		return scoreSequences(sequences);
 	}
 	
 	/**
@@ -176,90 +318,24 @@ public class GuideEfficacyScore implements GuideRNAScore {
 	 */
 	private static void writeScriptInputFile(Collection<GuideRNA> sequences, String file) throws IOException {
 		logger.debug("Writing input file for R script to " + file);
-		FileWriter w = new FileWriter(file);
-		String header = "SEQ\t";
-		for(int i = 1; i <= 19; i++) {
-			header += "BP" + i + "A\t";
-			header += "BP" + i + "C\t";
-			header += "BP" + i + "T\t";
-			header += "BP" + i + "G\t";
+		StringBuilder sb = new StringBuilder();
+		sb.append("SEQ");
+		for(int i = 1; i <= 20; i++) {
+			sb.append("\tBP" + i + "A\tBP" + i + "C\tBP" + i + "T\tBP" + i + "G");
 		}
-		header += "BP20A\tBP20C\tBP20T\tBP20G";
-		w.write(header + "\n");
-		Collection<String> alreadyWritten = new TreeSet<String>();
+		sb.append('\n');
+		Collection<String> alreadyWritten = new HashSet<String>();
 		for(GuideRNA g : sequences) {
 			String seq = g.getSequenceString();
-			if(seq.length() != 20) {
-				throw new IllegalArgumentException("Guide efficacy score not trained on sgRNAs of length other than 20");
-			}
-			if(alreadyWritten.contains(seq)) {
+			if(!alreadyWritten.add(seq)) {
 				continue;
 			}
-			String line = seq + "\t";
-			for(int i = 0; i < seq.length() - 1; i++) {
-				char b = line.charAt(i);
-				switch(b) {
-				case 'A':
-					line += "1\t0\t0\t0\t";
-					break;
-				case 'C':
-					line += "0\t1\t0\t0\t";
-					break;
-				case 'T':
-					line += "0\t0\t1\t0\t";
-					break;
-				case 'G':
-					line += "0\t0\t0\t1\t";
-					break;
-				case 'a':
-					line += "1\t0\t0\t0\t";
-					break;
-				case 'c':
-					line += "0\t1\t0\t0\t";
-					break;
-				case 't':
-					line += "0\t0\t1\t0\t";
-					break;
-				case 'g':
-					line += "0\t0\t0\t1\t";
-					break;
-				default:
-					throw new IllegalArgumentException("Can't process char: " + b + " at position " + i + " in sequence " + line);
-				}
-			}
-			char b = line.charAt(seq.length() - 1);
-			switch(b) {
-			case 'A':
-				line += "1\t0\t0\t0";
-				break;
-			case 'C':
-				line += "0\t1\t0\t0";
-				break;
-			case 'T':
-				line += "0\t0\t1\t0";
-				break;
-			case 'G':
-				line += "0\t0\t0\t1";
-				break;
-			case 'a':
-				line += "1\t0\t0\t0";
-				break;
-			case 'c':
-				line += "0\t1\t0\t0";
-				break;
-			case 't':
-				line += "0\t0\t1\t0";
-				break;
-			case 'g':
-				line += "0\t0\t0\t1";
-				break;
-			default:
-				throw new IllegalArgumentException("Can't process char " + b);
-			}
-
-			w.write(line + "\n");
-			alreadyWritten.add(seq);
+			sb.append(seq).append('\t');
+			GuideEfficacyFeatures.appendRow(sb, GuideEfficacyFeatures.pack(seq));
+			sb.append('\n');
 		}
+		FileWriter w = new FileWriter(file);
+		w.write(sb.toString());
 		w.close();
 	}
 	
@@ -270,7 +346,7 @@ public class GuideEfficacyScore implements GuideRNAScore {
 	 * @param outFile File to write script to
 	 * @throws IOException
 	 */
-	private void writeRScript(String outFile) throws IOException {
+	private static void writeRScript(String outFile) throws IOException {
 		logger.debug("Writing script to file " + outFile);
 		FileWriter w = new FileWriter(outFile);
 		w.write("library(e1071)\n");
@@ -297,7 +373,7 @@ public class GuideEfficacyScore implements GuideRNAScore {
 	 * @param outFile File to write to
 	 * @throws IOException
 	 */
-	private void writeTrainingFile(String outFile) throws IOException {
+	private static void writeTrainingFile(String outFile) throws IOException {
 		logger.debug("Writing training file to " + outFile);
 		File of = new File(outFile);
 		if(of.exists()) {
@@ -305,6 +381,17 @@ public class GuideEfficacyScore implements GuideRNAScore {
 			return;
 		}
 		FileWriter w = new FileWriter(outFile);
+		writeTrainingSet(w);
+		w.close();
+	}
+	
+	/**
+	 * Write the training set provided by Tim Wang
+	 * Columns are gRNA, INIT, FIN, strand.wrt, l2fc, gene, one-hot bases BP1A..BP20G (A, C, T, G for each position) and meddiff
+	 * @param w Writer to write to; not closed
+	 * @throws IOException
+	 */
+	static void writeTrainingSet(Writer w) throws IOException {
 		w.write("gRNA\tINIT\tFIN\tstrand.wrt\tl2fc\tgene\tBP1A\tBP1C\tBP1T\tBP1G\tBP2A\tBP2C\tBP2T\tBP2G\tBP3A\tBP3C\tBP3T\tBP3G\tBP4A\tBP4C\tBP4T\tBP4G\tBP5A\tBP5C\tBP5T\tBP5G\tBP6A\tBP6C\tBP6T\tBP6G\tBP7A\tBP7C\tBP7T\tBP7G\tBP8A\tBP8C\tBP8T\tBP8G\tBP9A\tBP9C\tBP9T\tBP9G\tBP10A\tBP10C\tBP10T\tBP10G\tBP11A\tBP11C\tBP11T\tBP11G\tBP12A\tBP12C\tBP12T\tBP12G\tBP13A\tBP13C\tBP13T\tBP13G\tBP14A\tBP14C\tBP14T\tBP14G\tBP15A\tBP15C\tBP15T\tBP15G\tBP16A\tBP16C\tBP16T\tBP16G\tBP17A\tBP17C\tBP17T\tBP17G\tBP18A\tBP18C\tBP18T\tBP18G\tBP19A\tBP19C\tBP19T\tBP19G\tBP20A\tBP20C\tBP20T\tBP20G\tmeddiff\n");
 		w.write("RPL12_p130211606\t703\t0\t0\t-11.28397219\tRPL12\t1\t0\t0\t0\t0\t0\t1\t0\t0\t0\t0\t1\t1\t0\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t0\t0\t1\t0\t1\t0\t0\t1\t0\t0\t0\t0\t0\t0\t1\t1\t0\t0\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t1\t0\t0\t1\t0\t0\t0\t0\t0\t0\t1\t1\t0\t0\t0\t-8.470000219\n");
 		w.write("RPL13_p89627984\t1035\t0\t1\t-11.28397219\tRPL13\t0\t0\t0\t1\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t1\t0\t0\t0\t1\t0\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t1\t0\t0\t1\t0\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t1\t0\t0\t0\t0\t0\t0\t1\t1\t0\t0\t0\t-9.384785779\n");
@@ -2767,7 +2854,6 @@ public class GuideEfficacyScore implements GuideRNAScore {
 		w.write("RPL27A_m8705572\t240\t1615\t0\t2.876376906\tRPL27A\t0\t1\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t0\t0\t1\t0\t1\t0\t0\t1\t0\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t1\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t0\t0\t0\t0\t1\t0\t1\t0\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t1\t0\t0\t0\t1\t0\t0\t0\t0\t0\t1\t0\t1\t0\t0\t0\t1\t0\t0\t5.191477564\n");
 		w.write("RPL11_m24022351\t40\t423\t0\t3.528534811\tRPL11\t0\t1\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t0\t0\t1\t0\t0\t0\t0\t1\t0\t1\t0\t0\t0\t0\t1\t0\t0\t0\t0\t1\t1\t0\t0\t0\t0\t0\t1\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t1\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t1\t0\t5.778994943\n");
 		w.write("RPL18_m49121112\t28\t754\t1\t4.877014844\tRPL18\t1\t0\t0\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t1\t0\t0\t0\t1\t1\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t1\t0\t0\t0\t0\t0\t1\t0\t1\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t0\t0\t1\t0\t1\t0\t0\t0\t1\t0\t0\t0\t0\t1\t0\t0\t1\t0\t0\t0\t6.427531701\n");
-		w.close();
 	}
 
 	@Override
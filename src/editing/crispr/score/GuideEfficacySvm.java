@@ -0,0 +1,705 @@
+package editing.crispr.score;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-process version of the guide efficacy model in GuideEfficacyScore's R script:
+ * e1071::svm(x, as.factor(classes), probability=T) with its defaults, i.e. C-classification,
+ * radial kernel with gamma = 1/(number of features), cost 1, tolerance 0.001, features scaled to mean 0 and sd 1,
+ * and Platt scaling of the decision values fit on 5-fold cross validation.
+ * Training follows libsvm, which e1071 wraps. The folds for Platt scaling are drawn from a fixed seed,
+ * so probabilities can differ slightly from any one R run, whose folds are random.
+ * Guides are scored from a table of per-position squared distances to each support vector (see GuideEfficacyFeatures).
+ * The model is immutable once built and can be shared between threads.
+ */
+public class GuideEfficacySvm {
+
+	public static Logger logger = Logger.getLogger(GuideEfficacySvm.class.getName());
+
+	public static final int GUIDE_LENGTH = GuideEfficacyFeatures.GUIDE_LENGTH;
+	public static final int NUM_FEATURES = GuideEfficacyFeatures.NUM_FEATURES;
+
+	/**
+	 * Saved model to load instead of training, and to save to after training if it does not exist yet
+	 */
+	public static File MODEL_FILE = null;
+
+	private static final String FORMAT = "GuideEfficacySvm";
+	private static final int VERSION = 1;
+	private static final double L2FC_THRESHOLD = -1.6;
+	private static final double COST = 1;
+	private static final double TOLERANCE = 0.001;
+	private static final double TAU = 1e-12;
+	private static final int PROBABILITY_FOLDS = 5;
+	private static final long PROBABILITY_SEED = 1;
+	private static final double MIN_PROBABILITY = 1e-7;
+
+	private static GuideEfficacySvm defaultModel = null;
+
+	private double gamma;
+	private double[] center;
+	private double[] scale;
+	private double[][] supportVectors;
+	private double[] coefficients;
+	private double rho;
+	private double probA;
+	private double probB;
+	/**
+	 * Class (-1 or 1) that positive decision values predict; libsvm takes the class of the first training example
+	 */
+	private int firstClass;
+	/**
+	 * Squared distance contributed by each position and base to each support vector, indexed
+	 * [support vector][4 * position + base code]; features are one-hot, so the distances decompose by position
+	 */
+	private double[][] distanceTable;
+
+	private GuideEfficacySvm() {}
+
+	/**
+	 * Get the model trained on GuideEfficacyScore's training set, or loaded from MODEL_FILE
+	 * Built once per JVM.
+	 * @return The shared model
+	 * @throws IOException
+	 */
+	public static synchronized GuideEfficacySvm getDefault() throws IOException {
+		if (defaultModel == null) {
+			if (MODEL_FILE != null && MODEL_FILE.exists()) {
+				logger.info("Loading guide efficacy model from " + MODEL_FILE);
+				defaultModel = load(MODEL_FILE);
+			} else {
+				logger.info("Training guide efficacy model ... ");
+				StringWriter w = new StringWriter();
+				GuideEfficacyScore.writeTrainingSet(w);
+				defaultModel = train(new BufferedReader(new StringReader(w.toString())));
+				logger.info("Complete. " + defaultModel.supportVectors.length + " support vectors.");
+				if (MODEL_FILE != null) {
+					defaultModel.save(MODEL_FILE);
+					logger.info("Saved guide efficacy model to " + MODEL_FILE);
+				}
+			}
+		}
+		return defaultModel;
+	}
+
+	/**
+	 * Train on a table in the format of GuideEfficacyScore's training set
+	 * Class is -1 if l2fc (column 5) is below -1.6, otherwise 1; features are columns 7 to 86
+	 * @param reader Training table with header
+	 * @return The model
+	 * @throws IOException
+	 */
+	public static GuideEfficacySvm train(BufferedReader reader) throws IOException {
+		List<double[]> x = new ArrayList<double[]>();
+		List<Integer> classes = new ArrayList<Integer>();
+		reader.readLine();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.isEmpty()) continue;
+			String[] fields = line.split("\t");
+			double[] features = new double[NUM_FEATURES];
+			for (int i = 0; i < NUM_FEATURES; i++) {
+				features[i] = Double.parseDouble(fields[6 + i]);
+			}
+			x.add(features);
+			classes.add(Integer.valueOf(L2FC_THRESHOLD > Double.parseDouble(fields[4]) ? -1 : 1));
+		}
+		int[] c = new int[classes.size()];
+		for (int i = 0; i < c.length; i++) {
+			c[i] = classes.get(i).intValue();
+		}
+		return train(x.toArray(new double[x.size()][]), c);
+	}
+
+	/**
+	 * @param x Unscaled features
+	 * @param classes Class of each example, -1 or 1
+	 * @return The model
+	 */
+	public static GuideEfficacySvm train(double[][] x, int[] classes) {
+		GuideEfficacySvm rtrn = new GuideEfficacySvm();
+		int l = x.length;
+		int n = x[0].length;
+		rtrn.gamma = 1.0 / n;
+		rtrn.setScaling(x);
+		double[][] scaled = new double[l][];
+		for (int i = 0; i < l; i++) {
+			scaled[i] = rtrn.scale(x[i]);
+		}
+
+		// libsvm codes the class of the first example as +1
+		rtrn.firstClass = classes[0];
+		int[] y = new int[l];
+		for (int i = 0; i < l; i++) {
+			y[i] = classes[i] == rtrn.firstClass ? 1 : -1;
+		}
+
+		double[][] kernel = new double[l][l];
+		for (int i = 0; i < l; i++) {
+			for (int j = 0; j <= i; j++) {
+				kernel[i][j] = kernel[j][i] = rtrn.kernel(scaled[i], scaled[j]);
+			}
+		}
+
+		int[] all = new int[l];
+		for (int i = 0; i < l; i++) all[i] = i;
+		all = groupByClass(all, y);
+
+		double[] probability = fitSigmoid(kernel, all, y);
+		rtrn.probA = probability[0];
+		rtrn.probB = probability[1];
+
+		double[] alpha = new double[l];
+		rtrn.rho = solve(kernel, all, y, alpha);
+		int numSV = 0;
+		for (int i = 0; i < l; i++) {
+			if (alpha[i] != 0) numSV++;
+		}
+		rtrn.supportVectors = new double[numSV][];
+		rtrn.coefficients = new double[numSV];
+		int k = 0;
+		for (int i = 0; i < l; i++) {
+			if (alpha[i] != 0) {
+				rtrn.supportVectors[k] = scaled[all[i]];
+				rtrn.coefficients[k] = y[all[i]] * alpha[i];
+				k++;
+			}
+		}
+		rtrn.buildDistanceTable();
+		return rtrn;
+	}
+
+	/**
+	 * Order examples as libsvm does before training: those in the class of the first example, then the rest
+	 */
+	private static int[] groupByClass(int[] examples, int[] y) {
+		int[] rtrn = new int[examples.length];
+		int k = 0;
+		for (int i = 0; i < examples.length; i++) {
+			if (y[examples[i]] == y[examples[0]]) rtrn[k++] = examples[i];
+		}
+		for (int i = 0; i < examples.length; i++) {
+			if (y[examples[i]] != y[examples[0]]) rtrn[k++] = examples[i];
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Same as e1071: center and scale every column, unless some column is constant, in which case nothing is scaled
+	 */
+	private void setScaling(double[][] x) {
+		int l = x.length;
+		int n = x[0].length;
+		center = new double[n];
+		scale = new double[n];
+		boolean constant = false;
+		for (int j = 0; j < n; j++) {
+			double sum = 0;
+			for (int i = 0; i < l; i++) sum += x[i][j];
+			center[j] = sum / l;
+			double ss = 0;
+			for (int i = 0; i < l; i++) ss += (x[i][j] - center[j]) * (x[i][j] - center[j]);
+			scale[j] = Math.sqrt(ss / (l - 1));
+			if (!(scale[j] > 0)) constant = true;
+		}
+		if (constant) {
+			logger.warn("Constant feature in training set; features will not be scaled");
+			Arrays.fill(center, 0);
+			Arrays.fill(scale, 1);
+		}
+	}
+
+	private double[] scale(double[] features) {
+		double[] rtrn = new double[features.length];
+		for (int j = 0; j < features.length; j++) {
+			rtrn[j] = (features[j] - center[j]) / scale[j];
+		}
+		return rtrn;
+	}
+
+	private double kernel(double[] a, double[] b) {
+		double sum = 0;
+		for (int j = 0; j < a.length; j++) {
+			double d = a[j] - b[j];
+			sum += d * d;
+		}
+		return Math.exp(-gamma * sum);
+	}
+
+	private void buildDistanceTable() {
+		distanceTable = new double[supportVectors.length][4 * GUIDE_LENGTH];
+		for (int i = 0; i < supportVectors.length; i++) {
+			for (int p = 0; p < GUIDE_LENGTH; p++) {
+				for (int code = 0; code < 4; code++) {
+					int column = GuideEfficacyFeatures.column(code);
+					double sum = 0;
+					for (int k = 0; k < 4; k++) {
+						int j = 4*p + k;
+						double d = ((k == column ? 1 : 0) - center[j]) / scale[j] - supportVectors[i][j];
+						sum += d * d;
+					}
+					distanceTable[i][4*p + code] = sum;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decision value of a packed guide, from the distance table
+	 */
+	private double decisionValue(long packedGuide) {
+		int[] index = new int[GUIDE_LENGTH];
+		for (int p = 0; p < GUIDE_LENGTH; p++) {
+			index[p] = 4*p + GuideEfficacyFeatures.baseCode(packedGuide, p);
+		}
+		double sum = 0;
+		for (int i = 0; i < distanceTable.length; i++) {
+			double[] table = distanceTable[i];
+			double distance = 0;
+			for (int p = 0; p < GUIDE_LENGTH; p++) {
+				distance += table[index[p]];
+			}
+			sum += coefficients[i] * Math.exp(-gamma * distance);
+		}
+		return sum - rho;
+	}
+
+	/**
+	 * Decision value of unscaled features; positive predicts firstClass
+	 */
+	private double decisionValue(double[] features) {
+		double[] x = scale(features);
+		double sum = 0;
+		for (int i = 0; i < supportVectors.length; i++) {
+			sum += coefficients[i] * kernel(supportVectors[i], x);
+		}
+		return sum - rho;
+	}
+
+	/**
+	 * Probability of class 1 (l2fc at least -1.6), the second column of e1071's probabilities
+	 * @param features Unscaled features
+	 * @return Probability
+	 */
+	public double probabilityOfClass1(double[] features) {
+		return toProbabilityOfClass1(decisionValue(features));
+	}
+
+	private double toProbabilityOfClass1(double decisionValue) {
+		double p = sigmoid(decisionValue, probA, probB);
+		p = Math.min(Math.max(p, MIN_PROBABILITY), 1 - MIN_PROBABILITY);
+		return firstClass == 1 ? p : 1 - p;
+	}
+
+	/**
+	 * @param guide 20nt guide sequence without PAM
+	 * @return Efficacy score as computed by GuideEfficacyScore
+	 */
+	public double score(String guide) {
+		return score(GuideEfficacyFeatures.pack(guide));
+	}
+
+	/**
+	 * @param packedGuide 20nt guide packed as by GuideEfficacyFeatures
+	 * @return Efficacy score as computed by GuideEfficacyScore
+	 */
+	public double score(long packedGuide) {
+		return toProbabilityOfClass1(decisionValue(packedGuide));
+	}
+
+	/**
+	 * One-hot encoding in the training set's column order: A, C, T, G for each position
+	 * @param guide 20nt guide sequence, either case
+	 * @return Features
+	 */
+	public static double[] encode(String guide) {
+		return GuideEfficacyFeatures.toVector(GuideEfficacyFeatures.pack(guide));
+	}
+
+	/**
+	 * libsvm's SMO solver for C-SVC with second order working set selection, without shrinking
+	 * @param kernel Kernel matrix over all examples
+	 * @param examples Indices of the examples to train on
+	 * @param y Label of every example, 1 or -1
+	 * @param alpha Filled with the dual variable of each training example (indexed like examples)
+	 * @return rho
+	 */
+	private static double solve(double[][] kernel, int[] examples, int[] y, double[] alpha) {
+		int l = examples.length;
+		int[] yy = new int[l];
+		double[] gradient = new double[l];
+		for (int i = 0; i < l; i++) {
+			yy[i] = y[examples[i]];
+			alpha[i] = 0;
+			gradient[i] = -1;
+		}
+
+		int maxIter = Math.max(10000000, l > Integer.MAX_VALUE / 100 ? Integer.MAX_VALUE : 100 * l);
+		for (int iter = 0; iter < maxIter; iter++) {
+			// Select working set
+			double gmax = Double.NEGATIVE_INFINITY;
+			double gmax2 = Double.NEGATIVE_INFINITY;
+			int i = -1;
+			for (int t = 0; t < l; t++) {
+				if (yy[t] == 1) {
+					if (alpha[t] < COST && -gradient[t] >= gmax) {
+						gmax = -gradient[t];
+						i = t;
+					}
+				} else {
+					if (alpha[t] > 0 && gradient[t] >= gmax) {
+						gmax = gradient[t];
+						i = t;
+					}
+				}
+			}
+			int j = -1;
+			double objDiffMin = Double.POSITIVE_INFINITY;
+			double[] ki = i == -1 ? null : kernel[examples[i]];
+			for (int t = 0; t < l; t++) {
+				double gradDiff;
+				double quadCoef;
+				if (yy[t] == 1) {
+					if (alpha[t] <= 0) continue;
+					gradDiff = gmax + gradient[t];
+					if (gradient[t] >= gmax2) gmax2 = gradient[t];
+					if (gradDiff <= 0 || i == -1) continue;
+					quadCoef = 2 - 2.0 * ki[examples[t]];
+				} else {
+					if (alpha[t] >= COST) continue;
+					gradDiff = gmax - gradient[t];
+					if (-gradient[t] >= gmax2) gmax2 = -gradient[t];
+					if (gradDiff <= 0 || i == -1) continue;
+					quadCoef = 2 - 2.0 * ki[examples[t]];
+				}
+				double objDiff = -(gradDiff * gradDiff) / (quadCoef > 0 ? quadCoef : TAU);
+				if (objDiff <= objDiffMin) {
+					j = t;
+					objDiffMin = objDiff;
+				}
+			}
+			if (gmax + gmax2 < TOLERANCE || j == -1) break;
+
+			// Update alpha[i] and alpha[j]; the kernel diagonal is 1
+			double qij = yy[i] * yy[j] * ki[examples[j]];
+			double oldAlphaI = alpha[i];
+			double oldAlphaJ = alpha[j];
+			if (yy[i] != yy[j]) {
+				double quadCoef = 2 + 2 * qij;
+				if (quadCoef <= 0) quadCoef = TAU;
+				double delta = (-gradient[i] - gradient[j]) / quadCoef;
+				double diff = alpha[i] - alpha[j];
+				alpha[i] += delta;
+				alpha[j] += delta;
+				if (diff > 0) {
+					if (alpha[j] < 0) {
+						alpha[j] = 0;
+						alpha[i] = diff;
+					}
+				} else {
+					if (alpha[i] < 0) {
+						alpha[i] = 0;
+						alpha[j] = -diff;
+					}
+				}
+				if (diff > 0) {
+					if (alpha[i] > COST) {
+						alpha[i] = COST;
+						alpha[j] = COST - diff;
+					}
+				} else {
+					if (alpha[j] > COST) {
+						alpha[j] = COST;
+						alpha[i] = COST + diff;
+					}
+				}
+			} else {
+				double quadCoef = 2 - 2 * qij;
+				if (quadCoef <= 0) quadCoef = TAU;
+				double delta = (gradient[i] - gradient[j]) / quadCoef;
+				double sum = alpha[i] + alpha[j];
+				alpha[i] -= delta;
+				alpha[j] += delta;
+				if (sum > COST) {
+					if (alpha[i] > COST) {
+						alpha[i] = COST;
+						alpha[j] = sum - COST;
+					}
+				} else {
+					if (alpha[j] < 0) {
+						alpha[j] = 0;
+						alpha[i] = sum;
+					}
+				}
+				if (sum > COST) {
+					if (alpha[j] > COST) {
+						alpha[j] = COST;
+						alpha[i] = sum - COST;
+					}
+				} else {
+					if (alpha[i] < 0) {
+						alpha[i] = 0;
+						alpha[j] = sum;
+					}
+				}
+			}
+
+			double deltaI = (alpha[i] - oldAlphaI) * yy[i];
+			double deltaJ = (alpha[j] - oldAlphaJ) * yy[j];
+			double[] kj = kernel[examples[j]];
+			for (int t = 0; t < l; t++) {
+				gradient[t] += yy[t] * (ki[examples[t]] * deltaI + kj[examples[t]] * deltaJ);
+			}
+		}
+
+		// rho
+		int numFree = 0;
+		double sumFree = 0;
+		double ub = Double.POSITIVE_INFINITY;
+		double lb = Double.NEGATIVE_INFINITY;
+		for (int t = 0; t < l; t++) {
+			double yg = yy[t] * gradient[t];
+			if (alpha[t] >= COST) {
+				if (yy[t] == -1) ub = Math.min(ub, yg);
+				else lb = Math.max(lb, yg);
+			} else if (alpha[t] <= 0) {
+				if (yy[t] == 1) ub = Math.min(ub, yg);
+				else lb = Math.max(lb, yg);
+			} else {
+				numFree++;
+				sumFree += yg;
+			}
+		}
+		return numFree > 0 ? sumFree / numFree : (ub + lb) / 2;
+	}
+
+	/**
+	 * libsvm's svm_binary_svc_probability: decision values from cross validation, then Platt's sigmoid fit
+	 * @param examples Examples in training order
+	 * @return A and B
+	 */
+	private static double[] fitSigmoid(double[][] kernel, int[] examples, int[] y) {
+		int l = examples.length;
+		Random random = new Random(PROBABILITY_SEED);
+		int[] perm = examples.clone();
+		for (int i = 0; i < l; i++) {
+			int j = i + random.nextInt(l - i);
+			int tmp = perm[i];
+			perm[i] = perm[j];
+			perm[j] = tmp;
+		}
+
+		double[] decisionValues = new double[y.length];
+		for (int fold = 0; fold < PROBABILITY_FOLDS; fold++) {
+			int begin = fold * l / PROBABILITY_FOLDS;
+			int end = (fold + 1) * l / PROBABILITY_FOLDS;
+			int[] training = new int[l - (end - begin)];
+			int k = 0;
+			int positive = 0;
+			for (int i = 0; i < l; i++) {
+				if (i >= begin && i < end) continue;
+				training[k++] = perm[i];
+				if (y[perm[i]] > 0) positive++;
+			}
+			int negative = training.length - positive;
+			if (positive == 0 || negative == 0) {
+				double value = positive > 0 ? 1 : (negative > 0 ? -1 : 0);
+				for (int i = begin; i < end; i++) decisionValues[perm[i]] = value;
+				continue;
+			}
+			// The submodel labels its first example +1; orient its decision values to y
+			int sign = y[training[0]];
+			int[] subY = new int[y.length];
+			for (int i = 0; i < y.length; i++) subY[i] = y[i] * sign;
+			training = groupByClass(training, subY);
+			double[] alpha = new double[training.length];
+			double rho = solve(kernel, training, subY, alpha);
+			for (int i = begin; i < end; i++) {
+				double[] ki = kernel[perm[i]];
+				double sum = 0;
+				for (int t = 0; t < training.length; t++) {
+					if (alpha[t] != 0) sum += subY[training[t]] * alpha[t] * ki[training[t]];
+				}
+				decisionValues[perm[i]] = (sum - rho) * sign;
+			}
+		}
+		int[] labels = new int[l];
+		double[] values = new double[l];
+		for (int i = 0; i < l; i++) {
+			labels[i] = y[examples[i]];
+			values[i] = decisionValues[examples[i]];
+		}
+		return sigmoidTrain(values, labels);
+	}
+
+	/**
+	 * Platt's method with the improvements of Lin et al., as implemented in libsvm
+	 */
+	private static double[] sigmoidTrain(double[] dec, int[] y) {
+		int l = dec.length;
+		double prior1 = 0;
+		double prior0 = 0;
+		for (int i = 0; i < l; i++) {
+			if (y[i] > 0) prior1++;
+			else prior0++;
+		}
+		int maxIter = 100;
+		double minStep = 1e-10;
+		double sigma = 1e-12;
+		double eps = 1e-5;
+		double hiTarget = (prior1 + 1.0) / (prior1 + 2.0);
+		double loTarget = 1 / (prior0 + 2.0);
+		double[] t = new double[l];
+		for (int i = 0; i < l; i++) {
+			t[i] = y[i] > 0 ? hiTarget : loTarget;
+		}
+		double a = 0.0;
+		double b = Math.log((prior0 + 1.0) / (prior1 + 1.0));
+		double fval = sigmoidObjective(dec, t, a, b);
+
+		int iter;
+		for (iter = 0; iter < maxIter; iter++) {
+			double h11 = sigma;
+			double h22 = sigma;
+			double h21 = 0;
+			double g1 = 0;
+			double g2 = 0;
+			for (int i = 0; i < l; i++) {
+				double fApB = dec[i] * a + b;
+				double p, q;
+				if (fApB >= 0) {
+					p = Math.exp(-fApB) / (1.0 + Math.exp(-fApB));
+					q = 1.0 / (1.0 + Math.exp(-fApB));
+				} else {
+					p = 1.0 / (1.0 + Math.exp(fApB));
+					q = Math.exp(fApB) / (1.0 + Math.exp(fApB));
+				}
+				double d2 = p * q;
+				h11 += dec[i] * dec[i] * d2;
+				h22 += d2;
+				h21 += dec[i] * d2;
+				double d1 = t[i] - p;
+				g1 += dec[i] * d1;
+				g2 += d1;
+			}
+			if (Math.abs(g1) < eps && Math.abs(g2) < eps) break;
+
+			double det = h11 * h22 - h21 * h21;
+			double dA = -(h22 * g1 - h21 * g2) / det;
+			double dB = -(-h21 * g1 + h11 * g2) / det;
+			double gd = g1 * dA + g2 * dB;
+			double stepsize = 1;
+			while (stepsize >= minStep) {
+				double newA = a + stepsize * dA;
+				double newB = b + stepsize * dB;
+				double newf = sigmoidObjective(dec, t, newA, newB);
+				if (newf < fval + 0.0001 * stepsize * gd) {
+					a = newA;
+					b = newB;
+					fval = newf;
+					break;
+				}
+				stepsize = stepsize / 2.0;
+			}
+			if (stepsize < minStep) {
+				logger.warn("Line search fails in two-class probability estimates");
+				break;
+			}
+		}
+		if (iter >= maxIter) {
+			logger.warn("Reaching maximal iterations in two-class probability estimates");
+		}
+		return new double[] {a, b};
+	}
+
+	private static double sigmoidObjective(double[] dec, double[] t, double a, double b) {
+		double rtrn = 0;
+		for (int i = 0; i < dec.length; i++) {
+			double fApB = dec[i] * a + b;
+			if (fApB >= 0) rtrn += t[i] * fApB + Math.log(1 + Math.exp(-fApB));
+			else rtrn += (t[i] - 1) * fApB + Math.log(1 + Math.exp(fApB));
+		}
+		return rtrn;
+	}
+
+	private static double sigmoid(double decisionValue, double a, double b) {
+		double fApB = decisionValue * a + b;
+		if (fApB >= 0) return Math.exp(-fApB) / (1.0 + Math.exp(-fApB));
+		return 1.0 / (1 + Math.exp(fApB));
+	}
+
+	/**
+	 * @param file File to write the model to
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeUTF(FORMAT);
+		out.writeInt(VERSION);
+		out.writeInt(center.length);
+		out.writeInt(supportVectors.length);
+		out.writeInt(firstClass);
+		out.writeDouble(gamma);
+		out.writeDouble(rho);
+		out.writeDouble(probA);
+		out.writeDouble(probB);
+		for (int j = 0; j < center.length; j++) {
+			out.writeDouble(center[j]);
+			out.writeDouble(scale[j]);
+		}
+		for (int i = 0; i < supportVectors.length; i++) {
+			out.writeDouble(coefficients[i]);
+			for (int j = 0; j < center.length; j++) {
+				out.writeDouble(supportVectors[i][j]);
+			}
+		}
+		out.close();
+	}
+
+	/**
+	 * @param file File written by save()
+	 * @return The model
+	 * @throws IOException
+	 */
+	public static GuideEfficacySvm load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (!FORMAT.equals(in.readUTF()) || in.readInt() != VERSION) {
+				throw new IllegalArgumentException(file + " is not a guide efficacy model");
+			}
+			GuideEfficacySvm rtrn = new GuideEfficacySvm();
+			int n = in.readInt();
+			int numSV = in.readInt();
+			rtrn.firstClass = in.readInt();
+			rtrn.gamma = in.readDouble();
+			rtrn.rho = in.readDouble();
+			rtrn.probA = in.readDouble();
+			rtrn.probB = in.readDouble();
+			rtrn.center = new double[n];
+			rtrn.scale = new double[n];
+			for (int j = 0; j < n; j++) {
+				rtrn.center[j] = in.readDouble();
+				rtrn.scale[j] = in.readDouble();
+			}
+			rtrn.supportVectors = new double[numSV][n];
+			rtrn.coefficients = new double[numSV];
+			for (int i = 0; i < numSV; i++) {
+				rtrn.coefficients[i] = in.readDouble();
+				for (int j = 0; j < n; j++) {
+					rtrn.supportVectors[i][j] = in.readDouble();
+				}
+			}
+			rtrn.buildDistanceTable();
+			return rtrn;
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -9,6 +9,11 @@ import nextgen.core.annotation.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import org.apache.log4j.Logger;
 
@@ -17,6 +22,10 @@ import editing.crispr.*;
 /**
  * Guide RNA score based on Feng Zhang's algorithm
  * Implemented by JE based on http://crispr.mit.edu/about
+ * Sites are scored by an OffTargetScoringModel, MIT by default; CFD weights and single bulges are also supported.
+ * Guides of any length are aligned to the sites at the PAM. Guides longer than 20 bases are compared over the 20 bases
+ * next to the PAM, which is all the off target files store.
+ * Scoring only reads the off target sites, seed index and exon mask, so one instance can be shared by any number of threads
  * @author engreitz
  */
 public class GuideOffTargetScore extends CommandLineProgram implements GuideRNAScore {
@@ -24,18 +33,87 @@ public class GuideOffTargetScore extends CommandLineProgram implements GuideRNAS
 	public static Logger log = Logger.getLogger(GuideOffTargetScore.class.getName());
 	public static double EXON_PENALTY = 10.0;
 	
-	private byte[] offTargetSeqs;
-	public static double[] penalty = new double[] {0,0,0.014,0,0,0.395,0.317,0,0.389,0.079,0.445,0.508,0.613,0.851,0.732,0.828,0.615,0.804,0.685,0.583};	
+	private OffTargetSiteStore offTargetSeqs;
+	private OffTargetScoringModel model;
+	private boolean bulges;
+	/**
+	 * Max mismatches of the default MIT model
+	 */
 	public static int maxMismatch = 4;
+	private static final long GUIDE_BITS = (1L << 40) - 1;
+	/**
+	 * Whether to look up candidate sites in a seed index (see OffTargetSeedIndex) instead of scanning every site
+	 * The index costs OffTargetSeedIndex.BYTES_PER_SITE (20) bytes of heap per off target site, several GB for a
+	 * genome-wide NGG file, plus five passes over the sites to build. It is built once per file, on the first batch
+	 * of at least SEED_INDEX_MIN_GUIDES guides, so scorers that only see a few guides never pay for it.
+	 */
+	public static boolean USE_SEED_INDEX = true;
+	/**
+	 * Smallest batch of guides worth building the seed index for; smaller batches scan the sites unless it is already built
+	 */
+	public static int SEED_INDEX_MIN_GUIDES = 64;
+	public static int BATCH_THREADS = Runtime.getRuntime().availableProcessors();
+	private static int SITES_PER_TASK = 1 << 16;
+	private static int GUIDES_PER_TASK = 16;
+	private static int GUIDES_PER_BLOCK = 32;
+	private static ForkJoinPool pool = null;
 	File offTargetAnnotation = null;
-	HashSet<Integer> exonIndices = null;
+	OffTargetSiteMask exonIndices = null;
+	private boolean seedIndexAllowed;
+	private volatile OffTargetSeedIndex seedIndex = null;
+	/**
+	 * Score by packed guide and maxExact (see memoKey), so each distinct guide is scored once per scorer
+	 * Scores depend on the model too, which is fixed for the life of a scorer
+	 */
+	private ConcurrentMap<Long, Double> scoreMemo = new ConcurrentHashMap<Long, Double>();
+	/**
+	 * Upper bounds on scores whose scan stopped early because they fell below a minimum, keyed like scoreMemo
+	 */
+	private ConcurrentMap<Long, Double> boundMemo = new ConcurrentHashMap<Long, Double>();
+	private static final int MAX_MEMO_EXACT = (1 << 19) - 1;
 	
 	/**
 	 * Bed file containing off target sites, with the 23-base off-target sequence in the name column
 	 * @param offTargetBits
 	 */
 	public GuideOffTargetScore(File offTargetBits) {
+		this(offTargetBits, new MitOffTargetModel(maxMismatch));
+	}
+	
+	/**
+	 * @param offTargetBits Bitpacked file or off target index containing off target sites
+	 * @param model Site scoring model; models that weight PAMs need an off target index, which records each site's PAM
+	 * @throws IllegalArgumentException if the model weights PAMs and the file does not record them, or the model has
+	 * no weight for a PAM the file holds
+	 */
+	public GuideOffTargetScore(File offTargetBits, OffTargetScoringModel model) {
 		offTargetSeqs = loadOffTargetSeqs(offTargetBits);
+		if (model.usesPamWeights()) {
+			if (!offTargetSeqs.hasCoordinates()) {
+				throw new IllegalArgumentException("The " + model.getName() + " model weights sites by PAM, but " + offTargetBits + " does not record PAMs; rebuild it as an off target index");
+			}
+			// Fail now rather than partway through scoring
+			model.getPamWeight("GG");
+			if (offTargetSeqs.getPamType() == OffTargetIndexWriter.PAM_NGG_AND_NAG) {
+				model.getPamWeight("AG");
+			}
+		}
+		this.model = model;
+		bulges = model.getMaxBulges() > 0;
+		seedIndexAllowed = USE_SEED_INDEX;
+	}
+	
+	/**
+	 * @param cfdMatrix CFD weights (see CfdOffTargetModel), or null for the MIT model
+	 * @param maxBulges Max bulges per site, 0 or 1
+	 * @return The model
+	 * @throws IOException
+	 */
+	public static OffTargetScoringModel getModel(File cfdMatrix, int maxBulges) throws IOException {
+		if (cfdMatrix == null) {
+			return new MitOffTargetModel(maxMismatch, maxBulges);
+		}
+		return new CfdOffTargetModel(cfdMatrix, maxMismatch, maxBulges);
 	}
 	
 	/**
@@ -58,21 +136,20 @@ public class GuideOffTargetScore extends CommandLineProgram implements GuideRNAS
 	}
 	
 
-	public static HashSet<Integer> readIndices(File exonIndices) {
+	/**
+	 * @param exonIndices Site indices overlapping exons, as text (one per line) or a binary OffTargetSiteMask
+	 * @return The mask, or null if no file
+	 */
+	public static OffTargetSiteMask readIndices(File exonIndices) {
 		if (exonIndices == null) return null;
-		HashSet<Integer> set = new HashSet<Integer>();
+		OffTargetSiteMask mask = null;
 		try {
-			BufferedReader reader = new BufferedReader(new FileReader(exonIndices));
-			String line;
-			while ((line = reader.readLine()) != null) {
-				set.add(Integer.decode(line));
-			}
-			reader.close();
+			mask = OffTargetSiteMask.load(exonIndices);
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
-		return set;
+		return mask;
 	}
 	
 	
@@ -82,7 +159,35 @@ public class GuideOffTargetScore extends CommandLineProgram implements GuideRNAS
 	}
 	
 	public double getScore(GuideRNA guideRNA, int maxExact) {
-		return getOffTargetHits(guideRNA.getSequenceString(), maxExact).score;
+		String sequence = guideRNA.getSequenceString();
+		Long key = memoKey(packQuery(sequence), maxExact);
+		Double score = lookupMemo(key, Double.NEGATIVE_INFINITY);
+		if (score == null) {
+			OffTargetHits hits = getOffTargetHits(sequence, maxExact);
+			memoize(key, hits);
+			score = Double.valueOf(hits.score);
+		}
+		return score.doubleValue();
+	}
+	
+	/**
+	 * Whether the guide's score is at least minScore, allowing one exact match
+	 * The score is 10000 / (100 + sum of site scores) and site scores are never negative, so the scan stops as soon as
+	 * the running sum pushes the score below minScore; repetitive guides are rejected after a fraction of a scan.
+	 * @param guideRNA Guide RNA
+	 * @param minScore Min score to pass
+	 * @return True iff getScore(guideRNA) >= minScore
+	 */
+	public boolean passesOffTarget(GuideRNA guideRNA, double minScore) {
+		String sequence = guideRNA.getSequenceString();
+		Long key = memoKey(packQuery(sequence), 1);
+		Double score = lookupMemo(key, minScore);
+		if (score == null) {
+			OffTargetHits hits = getOffTargetHits(sequence, 1, minScore);
+			memoize(key, hits);
+			score = Double.valueOf(hits.score);
+		}
+		return score.doubleValue() >= minScore;
 	}
 
 	@Override
@@ -91,53 +196,92 @@ public class GuideOffTargetScore extends CommandLineProgram implements GuideRNAS
 	}
 	
 	
-	private byte[] loadOffTargetSeqs(File file) {
-		// For now, load whole thing into memory.  
-		// Definitely smarter ways to do this in the future...
-		log.info("Loading target sequences from bitpacked file ... ");
-		byte[] bitSeqs = null;
+	private OffTargetSiteStore loadOffTargetSeqs(File file) {
+		// Mapped rather than read, and shared with any other scorer using the same file
+		OffTargetSiteStore store = null;
 		try {
-			BufferedInputStream bs = new BufferedInputStream(new FileInputStream(file));
-			bitSeqs = new byte[bs.available()];
-			bs.read(bitSeqs);
-			bs.close();
+			store = OffTargetSiteStore.open(file);
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
-		log.info("Complete.");
-		return bitSeqs;
+		return store;
 	}
 	
 	
 	/**
-	 * Take an OffTargetHits class, read the indices of hits, and annotate these hits with their genomic positions and sequences
-	 * using a reference file.  Warning: This is slow at the moment.  To speed up, index the annotation file (to do).
+	 * Take an OffTargetHits class, read the indices of hits, and annotate these hits with their genomic positions and sequences.
+	 * Off target indexes (see OffTargetIndexWriter) resolve each hit with one lookup; otherwise the hits are found
+	 * in the off-target annotation file, which is read once.
 	 * @param hits
 	 * @return
 	 */
 	public OffTargetHits annotateOffTargetHits(OffTargetHits hits) {
+		annotateOffTargetHits(Collections.singletonList(hits));
+		return hits;
+	}
+	
+	/**
+	 * Annotate the hits of many guides at once
+	 * Without an off target index, the off-target annotation file is read once for all of them.
+	 * @param allHits Hits to annotate
+	 */
+	public void annotateOffTargetHits(List<OffTargetHits> allHits) {
+		if (offTargetSeqs.hasCoordinates()) {
+			for (OffTargetHits hits : allHits) {
+				hits.offTargetHits = new ArrayList<GuideRNA>();
+				for (Integer site : hits.offTargetIndices) {
+					hits.offTargetHits.add(getOffTargetSite(site.intValue()));
+				}
+			}
+			return;
+		}
 		if (offTargetAnnotation == null) {
-			throw new UnsupportedOperationException("Need to initialize object with an off-target annotation file");
+			throw new UnsupportedOperationException("Need an off target index or to initialize object with an off-target annotation file");
 		}
-		hits.offTargetHits = new ArrayList<GuideRNA>();
 		
+		TreeMap<Integer, GuideRNA> sites = new TreeMap<Integer, GuideRNA>();
+		for (OffTargetHits hits : allHits) {
+			for (Integer site : hits.offTargetIndices) {
+				sites.put(site, null);
+			}
+		}
 		try {
 			CloseableIterator<GuideRNA> itr = AnnotationFileReader.read(offTargetAnnotation, GuideRNA.class, new GuideRNA.FactoryBED6());
-			int i = 0, hitsCtr = 0;
-			while (itr.hasNext() && hitsCtr < hits.offTargetIndices.size()) {
-				GuideRNA next = itr.next();
-				if (i == hits.offTargetIndices.get(hitsCtr)) {
-					hits.offTargetHits.add(next);
-					hitsCtr++;
+			Iterator<Integer> wanted = sites.keySet().iterator();
+			int i = 0;
+			int next = wanted.hasNext() ? wanted.next().intValue() : -1;
+			while (itr.hasNext() && next >= 0) {
+				GuideRNA site = itr.next();
+				if (i == next) {
+					sites.put(Integer.valueOf(i), site);
+					next = wanted.hasNext() ? wanted.next().intValue() : -1;
 				}
 				i++;
 			}
-			//System.out.println("Added " + hitsCtr + " off-target hits");
+			itr.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		return hits;
+		for (OffTargetHits hits : allHits) {
+			hits.offTargetHits = new ArrayList<GuideRNA>();
+			for (Integer site : hits.offTargetIndices) {
+				GuideRNA guide = sites.get(site);
+				if (guide != null) hits.offTargetHits.add(guide);
+			}
+		}
+	}
+	
+	/**
+	 * Build the guide RNA for one site of an off target index
+	 * @param site Site index
+	 * @return The site with its 23-base sequence
+	 */
+	private GuideRNA getOffTargetSite(int site) {
+		String sequence = offTargetSeqs.getSequenceWithPAM(site);
+		int start = offTargetSeqs.getStart(site);
+		Annotation a = new BasicAnnotation(offTargetSeqs.getChromosome(site), start, start + sequence.length(), offTargetSeqs.getStrand(site), sequence);
+		return new GuideRNA(a.trim(0,3), sequence);
 	}
 	
 	public OffTargetHits getOffTargetHits(String guideSequence) {
@@ -145,92 +289,406 @@ public class GuideOffTargetScore extends CommandLineProgram implements GuideRNAS
 	}
 	
 	public OffTargetHits getOffTargetHits(String guideSequence, int maxExact) {
-		byte[] guideBytes = BitpackGuideSequences.sequenceToBits(guideSequence);
-		double sum = 0;
-		int nExact = 0;
-		List<Integer> offTargetHits = new ArrayList<Integer>();
-		for (int i = 0; i < offTargetSeqs.length; i += 5) {
-			double currScore = scoreSingleHit(guideBytes, Arrays.copyOfRange(offTargetSeqs, i, i+5), 20);
-			if(exonIndices != null) {
-				if (exonIndices.contains(Integer.valueOf(i/5))) {
-					// Extra penalty for matches that overlap with exons
-					currScore = currScore * EXON_PENALTY;
-				}
+		return getOffTargetHits(guideSequence, maxExact, Double.NEGATIVE_INFINITY);
+	}
+	
+	/**
+	 * Scan for hits, stopping early once the score is known to be below minScore
+	 * @param guideSequence Guide sequence
+	 * @param maxExact Max exact matches to allow before the score is 0
+	 * @param minScore Score below which to stop; if the scan stops, the hits are marked incomplete and the score is an upper bound
+	 * @return Hits
+	 */
+	public OffTargetHits getOffTargetHits(String guideSequence, int maxExact, double minScore) {
+		long guide = packQuery(guideSequence);
+		prepareSeedIndex(1);
+		HitAccumulator hits = new HitAccumulator(maxExact, minScore);
+		// Sites outside the seed candidates have more mismatches or bulges than the model scores
+		int[] candidates = useSeedIndex(guide) ? seedIndex.getCandidates(guide & GUIDE_BITS, start(guide), bulges) : null;
+		int numToScore = candidates == null ? offTargetSeqs.getNumSites() : candidates.length;
+		for (int j = 0; j < numToScore; j++) {
+			int site = candidates == null ? j : candidates[j];
+			if (!hits.add(site, scoreSite(guide, site, offTargetSeqs.getPackedSite(site)))) {
+				//log.info("Exiting due to more than one perfect match or score below minimum");
+				break;
 			}
-			if (currScore > 0.0) offTargetHits.add(i/5);
-			if (Double.isInfinite(currScore)) {
-				nExact++;
-				if (nExact > maxExact) {
-					//log.info("Exiting due to more than one perfect match");
-					return new OffTargetHits(0.0, offTargetHits);
-				}
+		}
+		return hits.getHits();
+	}
+	
+	/**
+	 * Score many guides at once, spread over BATCH_THREADS threads
+	 * Each distinct guide sequence is scored once
+	 * @param guides Guide RNAs
+	 * @return Off target score by guide sequence
+	 */
+	public Map<String, Double> scoreAll(Collection<GuideRNA> guides) {
+		return scoreAll(guides, 1);
+	}
+	
+	/**
+	 * Score many guides at once, spread over BATCH_THREADS threads
+	 * Each distinct guide sequence is scored once, and guides scored by an earlier call are not scored again
+	 * @param guides Guide RNAs
+	 * @param maxExact Max exact matches to allow before the score is 0
+	 * @return Off target score by guide sequence
+	 */
+	public Map<String, Double> scoreAll(Collection<GuideRNA> guides, int maxExact) {
+		return scoreAll(guides, maxExact, Double.NEGATIVE_INFINITY);
+	}
+	
+	/**
+	 * Score many guides at once, as scoreAll, but only exactly for guides scoring at least minScore
+	 * With the seed index, each guide's scan stops once its score falls below minScore, and the score returned for it
+	 * is then an upper bound that is still below minScore.
+	 * @param guides Guide RNAs
+	 * @param maxExact Max exact matches to allow before the score is 0
+	 * @param minScore Min score of interest
+	 * @return Off target score by guide sequence; exact if at least minScore
+	 */
+	public Map<String, Double> scoreAll(Collection<GuideRNA> guides, int maxExact, double minScore) {
+		Map<String, Double> rtrn = new HashMap<String, Double>();
+		Set<String> distinct = new LinkedHashSet<String>();
+		for (GuideRNA guide : guides) {
+			String sequence = guide.getSequenceString();
+			if (rtrn.containsKey(sequence) || distinct.contains(sequence)) continue;
+			Double score = lookupMemo(memoKey(packQuery(sequence), maxExact), minScore);
+			if (score != null) {
+				rtrn.put(sequence, score);
 			} else {
-				sum = sum + currScore;
+				distinct.add(sequence);
 			}
 		}
-		//log.info("sumScore = " + sum);
-		//log.info("Found " +  nExact + " exact matches.");
-		return new OffTargetHits(10000.0 / (100.0 + sum), offTargetHits);
+		if (distinct.isEmpty()) {
+			return rtrn;
+		}
+		List<String> sequences = new ArrayList<String>(distinct);
+		List<OffTargetHits> hits = getOffTargetHits(sequences, maxExact, minScore);
+		for (int i = 0; i < sequences.size(); i++) {
+			rtrn.put(sequences.get(i), Double.valueOf(hits.get(i).score));
+			memoize(memoKey(packQuery(sequences.get(i)), maxExact), hits.get(i));
+		}
+		return rtrn;
 	}
 	
+	/**
+	 * Batch version of getOffTargetHits
+	 * With the seed index, the guides are divided among the threads and each looks up its own candidates.
+	 * Otherwise the sites are streamed once: the genome is divided among the threads in chunks, and each
+	 * chunk is scored against blocks of guides while it is in cache.
+	 * Results are identical to calling getOffTargetHits on each sequence.
+	 * @param guideSequences Guide sequences
+	 * @param maxExact Max exact matches to allow before the score is 0
+	 * @return Hits for each sequence, in the same order
+	 */
+	public List<OffTargetHits> getOffTargetHits(List<String> guideSequences, int maxExact) {
+		return getOffTargetHits(guideSequences, maxExact, Double.NEGATIVE_INFINITY);
+	}
 	
-	public class OffTargetHits {
-		public double score;
-		public List<Integer> offTargetIndices;
-		public List<GuideRNA> offTargetHits;
-		public OffTargetHits(double score, List<Integer> offTargetIndices) {
-			this.score = score;
-			this.offTargetIndices = offTargetIndices;
+	/**
+	 * Batch version of getOffTargetHits with a minimum score
+	 * Only scans with the seed index stop early; streaming the sites always completes.
+	 * The sites are streamed if the seed index can't find every scored site for any of the guides.
+	 * @param guideSequences Guide sequences
+	 * @param maxExact Max exact matches to allow before the score is 0
+	 * @param minScore Score below which a guide's scan may stop
+	 * @return Hits for each sequence, in the same order
+	 */
+	public List<OffTargetHits> getOffTargetHits(List<String> guideSequences, int maxExact, double minScore) {
+		OffTargetHits[] rtrn = new OffTargetHits[guideSequences.size()];
+		long[] guides = new long[rtrn.length];
+		prepareSeedIndex(guides.length);
+		boolean allIndexed = true;
+		for (int i = 0; i < guides.length; i++) {
+			guides[i] = packQuery(guideSequences.get(i));
+			allIndexed = allIndexed && useSeedIndex(guides[i]);
+		}
+		if (allIndexed) {
+			getPool().invoke(new GuideRangeTask(guideSequences, maxExact, minScore, rtrn, 0, rtrn.length));
+			return Arrays.asList(rtrn);
+		}
+		SiteHits[] siteHits = getPool().invoke(new SiteRangeTask(guides, 0, offTargetSeqs.getNumSites()));
+		for (int i = 0; i < guides.length; i++) {
+			HitAccumulator hits = new HitAccumulator(maxExact, Double.NEGATIVE_INFINITY);
+			SiteHits h = siteHits[i];
+			for (int j = 0; h != null && j < h.size; j++) {
+				if (!hits.add(h.sites[j], h.scores[j])) break;
+			}
+			rtrn[i] = hits.getHits();
 		}
+		return Arrays.asList(rtrn);
 	}
 	
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(BATCH_THREADS);
+		}
+		return pool;
+	}
 	
-	private double scoreSingleHit(byte[] one, byte[] two, int n) {
-		// Assumes two byte arrays of equal length
-		// Ask user to pass n to avoid overhead
-		int mismatches = 0;
-		double mismatchWeightProduct = 1;
-		List<Integer> mismatchPositions = new ArrayList<Integer>();
+	/**
+	 * Pick up the seed index if the store has one, or build it if the batch is large enough to pay for it
+	 * @param numGuides Number of guides about to be scored
+	 */
+	private void prepareSeedIndex(int numGuides) {
+		if (seedIndex != null || !seedIndexAllowed) return;
+		if (numGuides >= SEED_INDEX_MIN_GUIDES) {
+			seedIndex = offTargetSeqs.getSeedIndex();
+		} else {
+			seedIndex = offTargetSeqs.getSeedIndexIfBuilt();
+		}
+	}
+	
+	/**
+	 * @param guide Guide from packQuery
+	 * @return Whether the seed index finds every site the model scores for the guide
+	 */
+	private boolean useSeedIndex(long guide) {
+		return seedIndex != null && OffTargetSeedIndex.coversMismatches(model.getMaxMismatches(), model.getMaxBulges(), start(guide));
+	}
+	
+	/**
+	 * Scores depend only on the guide from packQuery (45 bits) and maxExact, so together they key the memo
+	 * @return The key, or null if maxExact is out of range
+	 */
+	private static Long memoKey(long guide, int maxExact) {
+		if (maxExact < 0 || maxExact > MAX_MEMO_EXACT) return null;
+		return Long.valueOf((guide << 19) | maxExact);
+	}
+	
+	/**
+	 * @return The memoized exact score, or an upper bound if it is below minScore, or null
+	 */
+	private Double lookupMemo(Long key, double minScore) {
+		if (key == null) return null;
+		Double score = scoreMemo.get(key);
+		if (score == null) {
+			Double bound = boundMemo.get(key);
+			if (bound != null && bound.doubleValue() < minScore) score = bound;
+		}
+		return score;
+	}
+	
+	private void memoize(Long key, OffTargetHits hits) {
+		if (key == null) return;
+		if (hits.complete) {
+			scoreMemo.put(key, Double.valueOf(hits.score));
+		} else {
+			boundMemo.put(key, Double.valueOf(hits.score));
+		}
+	}
+	
+	/**
+	 * Pack the 20 bases of the guide next to the PAM, aligned at the PAM (see OffTargetAlignments), with the first
+	 * guide position in the 5 bits above them
+	 */
+	private static long packQuery(String guideSequence) {
+		int length = Math.min(OffTargetAlignments.GUIDE_LENGTH, guideSequence.length());
+		int start = OffTargetAlignments.GUIDE_LENGTH - length;
+		long guide = BitpackGuideSequences.sequenceToLong(guideSequence.substring(guideSequence.length() - length)) << (2*start);
+		return guide | ((long) start << 40);
+	}
+	
+	private static int start(long guide) {
+		return (int) (guide >>> 40);
+	}
+	
+	/**
+	 * Score one site including the PAM weight and exon penalty
+	 * @param guide Guide from packQuery
+	 */
+	private double scoreSite(long guide, int site, long packedSite) {
+		int start = start(guide);
+		guide = guide & GUIDE_BITS;
+		double currScore = model.scoreSite(guide, packedSite, start);
+		if (bulges && !Double.isInfinite(currScore)) {
+			currScore = Math.max(currScore, OffTargetAlignments.bestBulgeScore(model, guide, packedSite, start));
+		}
+		if (currScore != 0.0 && !Double.isInfinite(currScore) && model.usesPamWeights()) {
+			// Only indexed files record the PAM, which the constructor checks
+			currScore = currScore * model.getPamWeight(offTargetSeqs.getPam(site).substring(1));
+		}
+		if (currScore != 0.0 && exonIndices != null) {
+			if (exonIndices.contains(site)) {
+				// Extra penalty for matches that overlap with exons
+				currScore = currScore * EXON_PENALTY;
+			}
+		}
+		return currScore;
+	}
+	
+	/**
+	 * Running off target sum for one guide
+	 * Sites must be added in ascending order so the sum is the same however the sites were found
+	 */
+	private class HitAccumulator {
+		private double sum = 0;
+		private int nExact = 0;
+		private int maxExact;
+		private double minScore;
+		private boolean tooManyExact = false;
+		private boolean belowMin = false;
+		private List<Integer> offTargetHits = new ArrayList<Integer>();
 		
-		for (int i = 0; i < n*2; i += 2) {
-			byte mask = (byte) (0b00000011 << (i % 8));
-			if ((one[i/8] & mask) != (two[i/8] & mask)) {
-				mismatches++;
-				mismatchWeightProduct = mismatchWeightProduct * (1.0 - penalty[i/2]);
-				mismatchPositions.add(i/2);
+		HitAccumulator(int maxExact, double minScore) {
+			this.maxExact = maxExact;
+			this.minScore = minScore;
+		}
+		
+		/**
+		 * @return False once there are more than maxExact exact matches, after which the score is 0,
+		 * or once the score is below minScore, which more sites can only lower
+		 */
+		boolean add(int site, double currScore) {
+			if (currScore > 0.0) offTargetHits.add(site);
+			if (Double.isInfinite(currScore)) {
+				nExact++;
+				if (nExact > maxExact) {
+					tooManyExact = true;
+					return false;
+				}
+			} else {
+				sum = sum + currScore;
+				if (currScore > 0.0 && 10000.0 / (100.0 + sum) < minScore) {
+					belowMin = true;
+					return false;
+				}
 			}
-			if (mismatches > maxMismatch) return 0; 
+			return true;
 		}
 		
-		double pairwiseDistancePenalty = 1.0 / (1.0 + (19.0-getMeanPairwiseDistance(mismatchPositions))/19.0 * 4.0);
+		OffTargetHits getHits() {
+			//log.info("sumScore = " + sum);
+			//log.info("Found " +  nExact + " exact matches.");
+			OffTargetHits rtrn = new OffTargetHits(tooManyExact ? 0.0 : 10000.0 / (100.0 + sum), offTargetHits);
+			rtrn.complete = !belowMin;
+			return rtrn;
+		}
+	}
+	
+	/**
+	 * Nonzero site scores for one guide, in site order
+	 */
+	private static class SiteHits {
+		int[] sites = new int[16];
+		double[] scores = new double[16];
+		int size = 0;
 		
-		// Note that the extra factor of 100 is not noted on the web site but is included in their guideRNA score calculations
-		double result = (mismatchWeightProduct * pairwiseDistancePenalty / ((double) mismatches * mismatches) * 100.0);
-		return result;
+		void add(int site, double score) {
+			if (size == sites.length) {
+				sites = Arrays.copyOf(sites, 2 * size);
+				scores = Arrays.copyOf(scores, 2 * size);
+			}
+			sites[size] = site;
+			scores[size] = score;
+			size++;
+		}
+		
+		void addAll(SiteHits other) {
+			for (int i = 0; i < other.size; i++) {
+				add(other.sites[i], other.scores[i]);
+			}
+		}
 	}
 	
+	/**
+	 * Seed index lookups for a range of guides
+	 */
+	private class GuideRangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private List<String> sequences;
+		private int maxExact;
+		private double minScore;
+		private OffTargetHits[] rtrn;
+		private int from, to;
+		
+		GuideRangeTask(List<String> sequences, int maxExact, double minScore, OffTargetHits[] rtrn, int from, int to) {
+			this.sequences = sequences;
+			this.maxExact = maxExact;
+			this.minScore = minScore;
+			this.rtrn = rtrn;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= GUIDES_PER_TASK) {
+				for (int i = from; i < to; i++) {
+					rtrn[i] = getOffTargetHits(sequences.get(i), maxExact, minScore);
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new GuideRangeTask(sequences, maxExact, minScore, rtrn, from, mid), new GuideRangeTask(sequences, maxExact, minScore, rtrn, mid, to));
+		}
+	}
 	
-	private double getMeanPairwiseDistance(List<Integer> mismatchPositions) {
-		int sum = 0;
-		int total = 0;
-		int length = mismatchPositions.size();
-		if (length == 0) return 0;
-
-		for (int i = 0; i < length-1; i++) {
-			for (int j = i+1; j < length; j++) {
-				total++;
-				sum += mismatchPositions.get(j) - mismatchPositions.get(i);
+	/**
+	 * All guides against a range of sites
+	 */
+	private class SiteRangeTask extends RecursiveTask<SiteHits[]> {
+		private static final long serialVersionUID = 1L;
+		private long[] guides;
+		private int from, to;
+		
+		SiteRangeTask(long[] guides, int from, int to) {
+			this.guides = guides;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected SiteHits[] compute() {
+			if (to - from > SITES_PER_TASK) {
+				int mid = (from + to) >>> 1;
+				SiteRangeTask left = new SiteRangeTask(guides, from, mid);
+				left.fork();
+				SiteHits[] right = new SiteRangeTask(guides, mid, to).compute();
+				SiteHits[] rtrn = left.join();
+				for (int g = 0; g < guides.length; g++) {
+					if (right[g] == null) continue;
+					if (rtrn[g] == null) rtrn[g] = right[g];
+					else rtrn[g].addAll(right[g]);
+				}
+				return rtrn;
+			}
+			long[] chunk = new long[to - from];
+			for (int i = 0; i < chunk.length; i++) {
+				chunk[i] = offTargetSeqs.getPackedSite(from + i);
 			}
+			SiteHits[] rtrn = new SiteHits[guides.length];
+			for (int blockStart = 0; blockStart < guides.length; blockStart += GUIDES_PER_BLOCK) {
+				int blockEnd = Math.min(blockStart + GUIDES_PER_BLOCK, guides.length);
+				for (int i = 0; i < chunk.length; i++) {
+					for (int g = blockStart; g < blockEnd; g++) {
+						double currScore = scoreSite(guides[g], from + i, chunk[i]);
+						if (currScore != 0.0) {
+							if (rtrn[g] == null) rtrn[g] = new SiteHits();
+							rtrn[g].add(from + i, currScore);
+						}
+					}
+				}
+			}
+			return rtrn;
 		}
-
-		double result = ((double) sum) / ((double) total);
-		//logger.info("Mean pairwise distance of " + mismatchPositions.toString() + " = " + result);
-		return result;
 	}
 	
 	
+	public class OffTargetHits {
+		public double score;
+		public List<Integer> offTargetIndices;
+		public List<GuideRNA> offTargetHits;
+		/**
+		 * False if the scan stopped once the score fell below a minimum; the score is then an upper bound and the hits partial
+		 */
+		public boolean complete = true;
+		public OffTargetHits(double score, List<Integer> offTargetIndices) {
+			this.score = score;
+			this.offTargetIndices = offTargetIndices;
+		}
+	}
 	
-
 	
 	/**
 		String version
@@ -296,7 +754,7 @@ public class GuideOffTargetScore extends CommandLineProgram implements GuideRNAS
 	@Option(doc="Bed file containing guides")
 	public File GUIDES;
 
-	@Option(doc="Bitpacked file containing off target sites")
+	@Option(doc="Bitpacked file or off target index containing off target sites")
 	public File OFF_TARGET_BITS;
 	
 	@Option(doc="Max exact matches to reference to allow (default=1, set to 0 if you want guides that do not target any known site in the genome)")
@@ -305,6 +763,17 @@ public class GuideOffTargetScore extends CommandLineProgram implements GuideRNAS
 	@Option(doc="Output file")
 	public File OUTPUT;
 	
+	@Option(doc="Number of threads to score guides on", optional=true)
+	public Integer NUM_THREADS = BATCH_THREADS;
+	
+	@Option(doc="CFD weights to score sites with instead of the MIT algorithm (see CfdOffTargetModel); needs OFF_TARGET_BITS to be an off target index, which records PAMs", optional=true)
+	public File CFD_MATRIX = null;
+	
+	@Option(doc="Max bulges per off target site, 0 or 1", optional=true)
+	public Integer MAX_BULGES = 0;
+	
+	@Option(doc="Look up candidate sites in a seed index instead of scanning every site for batches of at least 64 guides. The index takes 20 bytes of heap per off target site (several GB for a genome-wide NGG file)", optional=true)
+	public Boolean SEED_INDEX = USE_SEED_INDEX;
 	
 
 	/**
@@ -322,21 +791,24 @@ public class GuideOffTargetScore extends CommandLineProgram implements GuideRNAS
         IoUtil.assertFileIsReadable(GUIDES);
         IoUtil.assertFileIsReadable(OFF_TARGET_BITS);
         IoUtil.assertFileIsWritable(OUTPUT);
+        BATCH_THREADS = NUM_THREADS;
+        USE_SEED_INDEX = SEED_INDEX;
 
         try {
         	
         	AnnotationList<GuideRNA> guides = AnnotationFileReader.load(GUIDES, GuideRNA.class, new GuideRNA.Factory());
-        	GuideOffTargetScore scorer = new GuideOffTargetScore(OFF_TARGET_BITS);
+        	GuideOffTargetScore scorer = new GuideOffTargetScore(OFF_TARGET_BITS, getModel(CFD_MATRIX, MAX_BULGES));
         	BufferedWriter writer = new BufferedWriter(new FileWriter(OUTPUT));
         	
-        	int i = 0;
-			for (GuideRNA guide : guides) {
-				double score = scorer.getScore(guide, MAX_EXACT);
-				guide.setScore(score);
+        	List<GuideRNA> guideList = new ArrayList<GuideRNA>();
+        	for (GuideRNA guide : guides) {
+        		guideList.add(guide);
+        	}
+        	log.info("Scoring " + guideList.size() + " guides with the " + scorer.model.getName() + " model on " + BATCH_THREADS + " threads.");
+        	Map<String, Double> scores = scorer.scoreAll(guideList, MAX_EXACT);
+			for (GuideRNA guide : guideList) {
+				guide.setScore(scores.get(guide.getSequenceString()).doubleValue());
 				writer.write(guide.toBedWithSequence() + "\n");
-				if (++i % 100 == 0) {
-					log.info("Scored " + i + " guides.");
-				}
 			}
 			writer.close();
 			
@@ -0,0 +1,114 @@
+package editing.crispr.score;
+
+/**
+ * Off target site score based on Feng Zhang's algorithm (http://crispr.mit.edu/about)
+ * The algorithm has no bulges; a bulge is scored as one more mismatch at the bulge position.
+ */
+public class MitOffTargetModel implements OffTargetScoringModel {
+
+	/**
+	 * Penalty for a mismatch at each position, 0 being furthest from the PAM
+	 */
+	public static double[] PENALTY = new double[] {0,0,0.014,0,0,0.395,0.317,0,0.389,0.079,0.445,0.508,0.613,0.851,0.732,0.828,0.615,0.804,0.685,0.583};
+
+	private int maxMismatches;
+	private int maxBulges;
+
+	/**
+	 * @param maxMismatches Max mismatches of a scored site
+	 */
+	public MitOffTargetModel(int maxMismatches) {
+		this(maxMismatches, 0);
+	}
+
+	/**
+	 * @param maxMismatches Max mismatches of a scored site, counting a bulge as a mismatch
+	 * @param maxBulges Max bulges per site, 0 or 1
+	 */
+	public MitOffTargetModel(int maxMismatches, int maxBulges) {
+		if (maxBulges < 0 || maxBulges > 1) {
+			throw new IllegalArgumentException("Max bulges must be 0 or 1: " + maxBulges);
+		}
+		this.maxMismatches = maxMismatches;
+		this.maxBulges = maxBulges;
+	}
+
+	@Override
+	public String getName() {
+		return "mit";
+	}
+
+	@Override
+	public int getMaxMismatches() {
+		return maxMismatches;
+	}
+
+	@Override
+	public int getMaxBulges() {
+		return maxBulges;
+	}
+
+	@Override
+	public double scoreSite(long guide, long site, int start) {
+		long lanes = OffTargetAlignments.mismatchLanes(guide, site) & OffTargetAlignments.lanes(start, OffTargetAlignments.GUIDE_LENGTH);
+		int mismatches = Long.bitCount(lanes);
+		if (mismatches > maxMismatches) return 0;
+
+		double mismatchWeightProduct = 1;
+		// Sum of pairwise distances: the k-th of m sorted positions is added k times and subtracted m-1-k times
+		int distanceSum = 0;
+		for (int k = 0; lanes != 0; k++) {
+			int position = Long.numberOfTrailingZeros(lanes) / 2;
+			mismatchWeightProduct = mismatchWeightProduct * (1.0 - PENALTY[position]);
+			distanceSum += position * (2*k - mismatches + 1);
+			lanes &= lanes - 1;
+		}
+		return score(mismatches, mismatchWeightProduct, distanceSum);
+	}
+
+	@Override
+	public double scoreBulge(long guide, long alignedSite, int start, int bulgePosition, boolean dnaBulge) {
+		long lanes = OffTargetAlignments.mismatchLanes(guide, alignedSite) & OffTargetAlignments.lanes(start, OffTargetAlignments.GUIDE_LENGTH);
+		int mismatches = Long.bitCount(lanes) + 1;
+		if (mismatches > maxMismatches) return 0;
+
+		int[] positions = new int[mismatches];
+		int n = 0;
+		for (; lanes != 0; lanes &= lanes - 1) {
+			positions[n++] = Long.numberOfTrailingZeros(lanes) / 2;
+		}
+		positions[n] = bulgePosition;
+		double mismatchWeightProduct = 1;
+		int distanceSum = 0;
+		for (int i = 0; i < mismatches; i++) {
+			mismatchWeightProduct = mismatchWeightProduct * (1.0 - PENALTY[positions[i]]);
+			for (int j = 0; j < i; j++) {
+				distanceSum += Math.abs(positions[i] - positions[j]);
+			}
+		}
+		return score(mismatches, mismatchWeightProduct, distanceSum);
+	}
+
+	@Override
+	public boolean usesPamWeights() {
+		return false;
+	}
+
+	@Override
+	public double getPamWeight(String pam) {
+		return 1;
+	}
+
+	private static double score(int mismatches, double mismatchWeightProduct, int distanceSum) {
+		// A lone mismatch has no pairwise distance, so it gets no distance penalty
+		double pairwiseDistancePenalty = 1.0;
+		if (mismatches > 1) {
+			double meanPairwiseDistance = ((double) distanceSum) / ((double) (mismatches * (mismatches - 1) / 2));
+			pairwiseDistancePenalty = 1.0 / (1.0 + (19.0-meanPairwiseDistance)/19.0 * 4.0);
+		}
+
+		// Note that the extra factor of 100 is not noted on the web site but is included in their guideRNA score calculations
+		return (mismatchWeightProduct * pairwiseDistancePenalty / ((double) mismatches * mismatches) * 100.0);
+	}
+
+}
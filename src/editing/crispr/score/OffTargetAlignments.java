@@ -0,0 +1,78 @@
+package editing.crispr.score;
+
+/**
+ * Bit operations on guides and off target sites packed as by BitpackGuideSequences.sequenceToLong
+ * Guides and sites are aligned at the PAM: position 19 is next to the PAM, and a guide shorter than 20 bases occupies
+ * positions start to 19 with start = 20 - length. Positions below start are not compared.
+ * Bulged alignments pair the guide with the site shifted by one base on the PAM-distal side of the bulge and are
+ * given to the scoring model as an aligned site, so models score them with the same mismatch lanes as ungapped sites.
+ */
+final class OffTargetAlignments {
+
+	static final int GUIDE_LENGTH = 20;
+	static final long LOW_BIT_OF_EACH_BASE = 0x5555555555L;
+
+	private OffTargetAlignments() {}
+
+	/**
+	 * @return Both bits of each position from from (inclusive) to to (exclusive)
+	 */
+	static long bases(int from, int to) {
+		if (from >= to) return 0;
+		return ((1L << (2*to)) - 1) & ~((1L << (2*from)) - 1);
+	}
+
+	/**
+	 * @return Low bit of each position from from (inclusive) to to (exclusive)
+	 */
+	static long lanes(int from, int to) {
+		return bases(from, to) & LOW_BIT_OF_EACH_BASE;
+	}
+
+	/**
+	 * @return Low bit of each position at which the two sequences differ, folding each 2-bit lane with one XOR
+	 */
+	static long mismatchLanes(long guide, long site) {
+		long diff = guide ^ site;
+		return (diff | (diff >>> 1)) & LOW_BIT_OF_EACH_BASE;
+	}
+
+	/**
+	 * Best score over all alignments of the guide to the site with one RNA or DNA bulge
+	 * An RNA bulge at guide position p leaves guide base p unpaired; guide bases below p pair with the site base
+	 * one closer to the PAM. A DNA bulge at site position p leaves site base p unpaired; guide bases up to p pair with
+	 * the site base one further from the PAM. The base beyond the PAM-distal end of a 20mer site is not stored, so
+	 * for full length guides a DNA bulge leaves guide position 0 unscored.
+	 * Alignments with more than the model's max mismatches are skipped without being scored.
+	 * @param model Scoring model
+	 * @param guide Packed guide
+	 * @param site Packed site
+	 * @param start First guide position
+	 * @return Best bulged site score, or 0 if none is scored
+	 */
+	static double bestBulgeScore(OffTargetScoringModel model, long guide, long site, int start) {
+		int limit = model.getMaxMismatches();
+		long inRange = lanes(start, GUIDE_LENGTH);
+		long unshifted = mismatchLanes(guide, site) & inRange;
+		long rnaShifted = mismatchLanes(guide, site >>> 2) & inRange;
+		int dnaStart = Math.max(start, 1);
+		long dnaShifted = mismatchLanes(guide, site << 2) & lanes(dnaStart, GUIDE_LENGTH);
+		double rtrn = 0;
+		// Mismatches on the PAM side of the bulge only grow as the bulge moves away from the PAM
+		for (int p = GUIDE_LENGTH - 1; p > start; p--) {
+			long high = unshifted & lanes(p + 1, GUIDE_LENGTH);
+			if (Long.bitCount(high) > limit) break;
+			long highBases = site & bases(p + 1, GUIDE_LENGTH);
+			if (Long.bitCount(high | (rnaShifted & lanes(start, p))) <= limit) {
+				long aligned = highBases | ((site >>> 2) & bases(start, p)) | (guide & bases(p, p + 1));
+				rtrn = Math.max(rtrn, model.scoreBulge(guide, aligned, start, p, false));
+			}
+			if (Long.bitCount(high | (dnaShifted & lanes(dnaStart, p + 1))) <= limit) {
+				long aligned = highBases | ((site << 2) & bases(dnaStart, p + 1)) | (guide & bases(0, dnaStart));
+				rtrn = Math.max(rtrn, model.scoreBulge(guide, aligned, start, p, true));
+			}
+		}
+		return rtrn;
+	}
+
+}
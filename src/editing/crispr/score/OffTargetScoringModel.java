@@ -0,0 +1,58 @@
+package editing.crispr.score;
+
+/**
+ * Scores one off target site against a guide, for GuideOffTargetScore
+ * Guides and sites are packed as by BitpackGuideSequences.sequenceToLong and aligned at the PAM (see OffTargetAlignments):
+ * position 19 is next to the PAM and only positions from start to 19 are compared.
+ * Site scores are on a 0 to 100 scale and never negative; a guide's score is 10000 / (100 + sum of its site scores).
+ * A site matching the guide exactly scores positive infinity, which GuideOffTargetScore counts as an exact match.
+ * Implementations must be safe to call from many threads.
+ */
+public interface OffTargetScoringModel {
+
+	/**
+	 * @return Name of the model
+	 */
+	public String getName();
+
+	/**
+	 * @return Max mismatches a site can have and still score; the seed index is only used if it finds all such sites
+	 */
+	public int getMaxMismatches();
+
+	/**
+	 * @return Max bulges per site alignment, 0 or 1
+	 */
+	public int getMaxBulges();
+
+	/**
+	 * @param guide Packed guide
+	 * @param site Packed site
+	 * @param start First guide position
+	 * @return Score of the ungapped alignment, 0 if not scored, infinity if the site matches exactly
+	 */
+	public double scoreSite(long guide, long site, int start);
+
+	/**
+	 * @param guide Packed guide
+	 * @param alignedSite Site bases paired with each guide position, as built by OffTargetAlignments; equal to the guide at the bulge for RNA bulges
+	 * @param start First guide position
+	 * @param bulgePosition Guide position of an RNA bulge, or site position of a DNA bulge
+	 * @param dnaBulge Whether the bulge is an unpaired site base rather than an unpaired guide base
+	 * @return Score of the bulged alignment, 0 if not scored
+	 */
+	public double scoreBulge(long guide, long alignedSite, int start, int bulgePosition, boolean dnaBulge);
+
+	/**
+	 * @return Whether scores depend on the PAM, so the sites must record theirs
+	 */
+	public boolean usesPamWeights();
+
+	/**
+	 * @param pam Last two bases of the site's PAM, e.g. GG or AG
+	 * @return Factor applied to scores of sites with the PAM
+	 * @throws IllegalArgumentException if the model has no weight for the PAM
+	 */
+	public double getPamWeight(String pam);
+
+}
@@ -0,0 +1,154 @@
+package editing.crispr.score;
+
+import java.util.Arrays;
+
+/**
+ * Pigeonhole index over the bitpacked off target sites written by BitpackGuideSequences
+ * Each 20mer record is split into 5 seed blocks of 4 bases, which are exactly the 5 bytes of the record.
+ * A site with at most 4 mismatches to a guide matches the guide exactly in at least one block,
+ * so the union of the guide's 5 buckets contains every site that can get a nonzero off target score.
+ * Guides shorter than 20 bases are aligned at the PAM and only use the blocks they cover completely.
+ * With bulges, blocks on the PAM-distal side of the bulge are shifted by one base, so each block is also looked up
+ * with the guide's bases shifted by one in either direction. A bulge breaks at most two blocks: the one it falls in,
+ * and for RNA bulges the first block, whose shifted key needs a guide base beyond the guide's end.
+ * Memory is one int per block per site; build once per file with OffTargetSiteStore.getSeedIndex().
+ */
+public class OffTargetSeedIndex {
+
+	public static final int NUM_BLOCKS = 5;
+	/**
+	 * Heap used per indexed site: one int per block
+	 */
+	public static final int BYTES_PER_SITE = 4 * NUM_BLOCKS;
+	private static final int NUM_KEYS = 256;
+
+	private int numSites;
+
+	/**
+	 * For each block, offset of each key's bucket in the site array (NUM_KEYS + 1 entries)
+	 */
+	private int[][] bucketStarts;
+
+	/**
+	 * For each block, site indices grouped by key; ascending within each bucket
+	 */
+	private int[][] sitesByKey;
+
+	/**
+	 * @param sites Bitpacked off target sites
+	 */
+	public OffTargetSeedIndex(OffTargetSiteStore sites) {
+		numSites = sites.getNumSites();
+		bucketStarts = new int[NUM_BLOCKS][NUM_KEYS + 1];
+		sitesByKey = new int[NUM_BLOCKS][];
+		for (int block = 0; block < NUM_BLOCKS; block++) {
+			// Counting sort on the block byte keeps sites in ascending order within each bucket
+			int[] starts = bucketStarts[block];
+			for (int site = 0; site < numSites; site++) {
+				starts[(sites.getByte(site, block) & 0xFF) + 1]++;
+			}
+			for (int key = 0; key < NUM_KEYS; key++) {
+				starts[key + 1] += starts[key];
+			}
+			int[] next = Arrays.copyOf(starts, NUM_KEYS);
+			int[] byKey = new int[numSites];
+			for (int site = 0; site < numSites; site++) {
+				byKey[next[sites.getByte(site, block) & 0xFF]++] = site;
+			}
+			sitesByKey[block] = byKey;
+		}
+	}
+
+	/**
+	 * @return Number of sites in the index
+	 */
+	public int getNumSites() {
+		return numSites;
+	}
+
+	/**
+	 * @param maxMismatches Max number of mismatches a scored site can have
+	 * @return Whether every site within that many mismatches is guaranteed to be a candidate
+	 */
+	public static boolean coversMismatches(int maxMismatches) {
+		return coversMismatches(maxMismatches, 0, 0);
+	}
+	
+	/**
+	 * @param maxMismatches Max number of mismatches a scored site can have
+	 * @param maxBulges Max number of bulges a scored site can have, 0 or 1
+	 * @param start First guide position compared, 20 minus the guide length
+	 * @return Whether every site within that many mismatches and bulges is guaranteed to be a candidate
+	 */
+	public static boolean coversMismatches(int maxMismatches, int maxBulges, int start) {
+		return maxMismatches + 2 * maxBulges < NUM_BLOCKS - firstBlock(start);
+	}
+	
+	/**
+	 * @return First block entirely within a guide starting at start
+	 */
+	private static int firstBlock(int start) {
+		return (start + 3) / 4;
+	}
+
+	/**
+	 * Get all sites that match the guide exactly over at least one seed block
+	 * @param guide 20mer guide sequence packed by BitpackGuideSequences.sequenceToLong
+	 * @return Distinct site indices in ascending order
+	 */
+	public int[] getCandidates(long guide) {
+		return getCandidates(guide, 0, false);
+	}
+	
+	/**
+	 * Get all sites that match the guide exactly over at least one seed block it covers, optionally shifted by one base
+	 * @param guide Guide packed by BitpackGuideSequences.sequenceToLong and aligned at the PAM (see OffTargetAlignments)
+	 * @param start First guide position, 20 minus the guide length
+	 * @param bulges Whether to also look up blocks shifted by a bulge
+	 * @return Distinct site indices in ascending order
+	 */
+	public int[] getCandidates(long guide, int start, boolean bulges) {
+		int maxLists = bulges ? 3 * NUM_BLOCKS : NUM_BLOCKS;
+		int[][] lists = new int[maxLists][];
+		int[] pos = new int[maxLists];
+		int[] end = new int[maxLists];
+		int numLists = 0;
+		int total = 0;
+		for (int block = firstBlock(start); block < NUM_BLOCKS; block++) {
+			int first = 4 * block;
+			for (int shift = -1; shift <= 1; shift++) {
+				if (shift != 0 && !bulges) continue;
+				// Shifted keys pair the block with guide bases first + shift to first + shift + 3
+				if (first + shift < start || first + shift + 4 > OffTargetAlignments.GUIDE_LENGTH) continue;
+				long shifted = shift < 0 ? guide << 2 : guide >>> (2 * shift);
+				int key = (int) ((shifted >>> (8*block)) & 0xFF);
+				lists[numLists] = sitesByKey[block];
+				pos[numLists] = bucketStarts[block][key];
+				end[numLists] = bucketStarts[block][key + 1];
+				total += end[numLists] - pos[numLists];
+				numLists++;
+			}
+		}
+
+		// Merge the sorted buckets, dropping sites that match on more than one block
+		int[] rtrn = new int[total];
+		int n = 0;
+		while (true) {
+			int min = Integer.MAX_VALUE;
+			for (int i = 0; i < numLists; i++) {
+				if (pos[i] < end[i] && lists[i][pos[i]] < min) {
+					min = lists[i][pos[i]];
+				}
+			}
+			if (min == Integer.MAX_VALUE) break;
+			rtrn[n++] = min;
+			for (int i = 0; i < numLists; i++) {
+				if (pos[i] < end[i] && lists[i][pos[i]] == min) {
+					pos[i]++;
+				}
+			}
+		}
+		return Arrays.copyOf(rtrn, n);
+	}
+
+}
@@ -0,0 +1,147 @@
+package editing.crispr.score;
+
+import java.io.*;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Set of off target site indices (e.g. sites overlapping exons), one bit per site
+ * Loads either a text file with one index per line or the binary form written by write(), which is memory-mapped.
+ * A text file is converted once to a binary sidecar next to it (same name plus SIDECAR_SUFFIX) that later runs map.
+ * Read-only after loading, so it can be shared between threads.
+ */
+public class OffTargetSiteMask {
+
+	public static Logger logger = Logger.getLogger(OffTargetSiteMask.class.getName());
+	public static final String SIDECAR_SUFFIX = ".mask";
+	private static final byte[] MAGIC = new byte[] {'S', 'I', 'T', 'E', 'M', 'A', 'S', 'K'};
+	private static final int HEADER_BYTES = 16;
+
+	private LongBuffer words;
+	private long numBits;
+
+	private OffTargetSiteMask(LongBuffer words, long numBits) {
+		this.words = words;
+		this.numBits = numBits;
+	}
+
+	/**
+	 * Load a mask, preferring the binary form
+	 * @param file Binary mask, or text file with one site index per line
+	 * @return The mask
+	 * @throws IOException
+	 */
+	public static OffTargetSiteMask load(File file) throws IOException {
+		if (isBinary(file)) {
+			return map(file);
+		}
+		File sidecar = new File(file.getPath() + SIDECAR_SUFFIX);
+		if (sidecar.exists() && sidecar.lastModified() >= file.lastModified() && isBinary(sidecar)) {
+			return map(sidecar);
+		}
+		OffTargetSiteMask rtrn = readText(file);
+		try {
+			rtrn.write(sidecar);
+			logger.info("Wrote binary site mask " + sidecar);
+		} catch (IOException e) {
+			logger.warn("Could not write binary site mask " + sidecar + ": " + e.getMessage());
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param file Text file with one site index per line, decimal or hex; blank lines are skipped
+	 * @return The mask
+	 * @throws IOException
+	 */
+	public static OffTargetSiteMask readText(File file) throws IOException {
+		long[] bits = new long[1024];
+		long numBits = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int lineNum = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNum++;
+				line = line.trim();
+				if (line.isEmpty()) continue;
+				int site;
+				try {
+					site = Integer.decode(line).intValue();
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Bad site index on line " + lineNum + " of " + file + ": " + line);
+				}
+				if (site < 0) {
+					throw new IllegalArgumentException("Negative site index on line " + lineNum + " of " + file + ": " + line);
+				}
+				if (site >>> 6 >= bits.length) {
+					bits = Arrays.copyOf(bits, Math.max(2 * bits.length, (site >>> 6) + 1));
+				}
+				bits[site >>> 6] |= 1L << site;
+				numBits = Math.max(numBits, site + 1L);
+			}
+		} finally {
+			reader.close();
+		}
+		return new OffTargetSiteMask(LongBuffer.wrap(bits, 0, (int) ((numBits + 63) >>> 6)).slice(), numBits);
+	}
+
+	/**
+	 * Map a binary mask written by write()
+	 * @param file Binary mask
+	 * @return The mask
+	 * @throws IOException
+	 */
+	public static OffTargetSiteMask map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(MAGIC.length);
+			long numBits = raf.readLong();
+			long numWords = (numBits + 63) >>> 6;
+			LongBuffer words = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, numWords * 8).asLongBuffer();
+			return new OffTargetSiteMask(words, numBits);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Write the binary form: magic, long number of bits, then the bit words (big-endian)
+	 * @param file Output file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.write(MAGIC);
+		out.writeLong(numBits);
+		for (int i = 0; i < words.limit(); i++) {
+			out.writeLong(words.get(i));
+		}
+		out.close();
+	}
+
+	/**
+	 * @param site Site index
+	 * @return Whether the site is in the mask
+	 */
+	public boolean contains(int site) {
+		if (site < 0 || site >= numBits) return false;
+		return (words.get(site >>> 6) & (1L << site)) != 0;
+	}
+
+	private static boolean isBinary(File file) throws IOException {
+		if (file.length() < HEADER_BYTES) return false;
+		byte[] magic = new byte[MAGIC.length];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(magic);
+		} finally {
+			in.close();
+		}
+		return Arrays.equals(magic, MAGIC);
+	}
+
+}
@@ -0,0 +1,264 @@
+package editing.crispr.score;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import nextgen.core.annotation.Annotation.Strand;
+
+import org.apache.log4j.Logger;
+
+import editing.crispr.OffTargetIndexWriter;
+
+/**
+ * Read-only memory mapping of a bitpacked off target file (5 bytes per site, see BitpackGuideSequences)
+ * Also reads the indexed format written by OffTargetIndexWriter, which adds the coordinates of each site.
+ * Stores are shared: every scorer in the JVM that opens the same file gets the same mapping and seed index.
+ * Only absolute reads are used on the buffers so a store can be read from any number of threads.
+ */
+public class OffTargetSiteStore {
+
+	public static Logger logger = Logger.getLogger(OffTargetSiteStore.class.getName());
+	public static final int BYTES_PER_SITE = 5;
+
+	/**
+	 * Sites per mapped chunk; keeps each mapping under the 2GB limit of a single buffer
+	 */
+	private static final int SITES_PER_CHUNK = 1 << 28;
+	private static final int COORDINATES_PER_CHUNK = 1 << 27;
+
+	private static Map<String, OffTargetSiteStore> openStores = new HashMap<String, OffTargetSiteStore>();
+
+	private File file;
+	private MappedByteBuffer[] chunks;
+	private int numSites;
+	private OffTargetSeedIndex seedIndex = null;
+
+	/**
+	 * Only set for indexed files
+	 */
+	private MappedByteBuffer[] coordinateChunks = null;
+	private String[] chromosomes = null;
+	private int pamType = OffTargetIndexWriter.PAM_NGG;
+
+	private OffTargetSiteStore(File bitpackedFile) throws IOException {
+		file = bitpackedFile;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long sequenceOffset = 0;
+			long sites = channel.size() / BYTES_PER_SITE;
+			long coordinateOffset = -1;
+			long chromosomeOffset = -1;
+			if (isIndexed(raf)) {
+				raf.seek(OffTargetIndexWriter.MAGIC.length);
+				int version = raf.readInt();
+				if (version != OffTargetIndexWriter.VERSION) {
+					throw new IllegalArgumentException("Unsupported off target index version " + version + " in " + file);
+				}
+				int guideLength = raf.readInt();
+				if (guideLength * 2 != BYTES_PER_SITE * 8) {
+					throw new IllegalArgumentException("Unsupported guide length " + guideLength + " in " + file);
+				}
+				pamType = raf.readInt();
+				raf.readInt();
+				sites = raf.readLong();
+				sequenceOffset = raf.readLong();
+				coordinateOffset = raf.readLong();
+				chromosomeOffset = raf.readLong();
+			}
+			if (sites > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Too many sites in " + file + ": " + sites);
+			}
+			numSites = (int) sites;
+			chunks = map(channel, sequenceOffset, sites, SITES_PER_CHUNK, BYTES_PER_SITE);
+			if (coordinateOffset >= 0) {
+				coordinateChunks = map(channel, coordinateOffset, sites, COORDINATES_PER_CHUNK, 8);
+				raf.seek(chromosomeOffset);
+				chromosomes = new String[raf.readInt()];
+				for (int i = 0; i < chromosomes.length; i++) {
+					chromosomes[i] = raf.readUTF();
+				}
+			}
+		} finally {
+			// The mappings stay valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	private static boolean isIndexed(RandomAccessFile raf) throws IOException {
+		byte[] magic = new byte[OffTargetIndexWriter.MAGIC.length];
+		if (raf.length() < OffTargetIndexWriter.HEADER_BYTES) return false;
+		raf.readFully(magic);
+		return Arrays.equals(magic, OffTargetIndexWriter.MAGIC);
+	}
+
+	/**
+	 * Map fixed width records in chunks that each stay under the 2GB limit of a single buffer
+	 */
+	private static MappedByteBuffer[] map(FileChannel channel, long offset, long numRecords, int recordsPerChunk, int bytesPerRecord) throws IOException {
+		int numChunks = (int) ((numRecords + recordsPerChunk - 1) / recordsPerChunk);
+		MappedByteBuffer[] rtrn = new MappedByteBuffer[numChunks];
+		for (int i = 0; i < numChunks; i++) {
+			long start = offset + (long) i * recordsPerChunk * bytesPerRecord;
+			long length = Math.min((long) recordsPerChunk, numRecords - (long) i * recordsPerChunk) * bytesPerRecord;
+			rtrn[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Get the shared store for a bitpacked file, mapping it on first use
+	 * @param bitpackedFile Bitpacked off target sites
+	 * @return The store
+	 * @throws IOException
+	 */
+	public static OffTargetSiteStore open(File bitpackedFile) throws IOException {
+		String key = bitpackedFile.getCanonicalPath();
+		synchronized (openStores) {
+			OffTargetSiteStore store = openStores.get(key);
+			if (store == null) {
+				logger.info("Mapping off target sites in " + key);
+				store = new OffTargetSiteStore(bitpackedFile);
+				openStores.put(key, store);
+			}
+			return store;
+		}
+	}
+
+	/**
+	 * @return Number of sites
+	 */
+	public int getNumSites() {
+		return numSites;
+	}
+
+	/**
+	 * @return The mapped file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @param site Site index
+	 * @param block Byte within the site record, 0 to 4
+	 * @return The byte
+	 */
+	public byte getByte(int site, int block) {
+		return chunks[site / SITES_PER_CHUNK].get((site % SITES_PER_CHUNK) * BYTES_PER_SITE + block);
+	}
+
+	/**
+	 * @param site Site index
+	 * @return The 20mer packed into a long as by BitpackGuideSequences.sequenceToLong
+	 */
+	public long getPackedSite(int site) {
+		MappedByteBuffer chunk = chunks[site / SITES_PER_CHUNK];
+		int offset = (site % SITES_PER_CHUNK) * BYTES_PER_SITE;
+		long rtrn = 0;
+		for (int i = 0; i < BYTES_PER_SITE; i++) {
+			rtrn |= (chunk.get(offset + i) & 0xFFL) << (8*i);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return Whether the file is an index with the coordinates of each site
+	 */
+	public boolean hasCoordinates() {
+		return coordinateChunks != null;
+	}
+
+	/**
+	 * @return OffTargetIndexWriter.PAM_NGG or PAM_NGG_AND_NAG
+	 */
+	public int getPamType() {
+		return pamType;
+	}
+
+	/**
+	 * @param site Site index
+	 * @return Chromosome of the site
+	 */
+	public String getChromosome(int site) {
+		return chromosomes[(int) (getCoordinate(site) >>> 40)];
+	}
+
+	/**
+	 * @param site Site index
+	 * @return Start of the site, including the PAM
+	 */
+	public int getStart(int site) {
+		return (int) getCoordinate(site);
+	}
+
+	/**
+	 * @param site Site index
+	 * @return Strand of the site
+	 */
+	public Strand getStrand(int site) {
+		return (getCoordinate(site) & (1L << 32)) != 0 ? Strand.NEGATIVE : Strand.POSITIVE;
+	}
+
+	/**
+	 * @param site Site index
+	 * @return The PAM of the site in guide orientation
+	 */
+	public String getPam(int site) {
+		long coordinate = getCoordinate(site);
+		char n = "ACGT".charAt((int) ((coordinate >>> 33) & 0x3));
+		return n + ((coordinate & (1L << 35)) != 0 ? "AG" : "GG");
+	}
+
+	/**
+	 * @param site Site index
+	 * @return Site sequence followed by its PAM, in guide orientation; N bases in the guide read as A
+	 */
+	public String getSequenceWithPAM(int site) {
+		long packed = getPackedSite(site);
+		char[] bases = new char[BYTES_PER_SITE * 4];
+		for (int i = 0; i < bases.length; i++) {
+			bases[i] = "ACGT".charAt((int) ((packed >>> (2*i)) & 0x3));
+		}
+		return new String(bases) + getPam(site);
+	}
+
+	/**
+	 * @param site Site index
+	 * @return Coordinate record packed by OffTargetIndexWriter.packCoordinate
+	 */
+	private long getCoordinate(int site) {
+		if (coordinateChunks == null) {
+			throw new UnsupportedOperationException(file + " has no coordinates; rebuild it as an off target index");
+		}
+		return coordinateChunks[site / COORDINATES_PER_CHUNK].getLong((site % COORDINATES_PER_CHUNK) * 8);
+	}
+
+	/**
+	 * Get the seed index over this store, building it on first use
+	 * The index takes OffTargetSeedIndex.BYTES_PER_SITE bytes of heap per site for the life of the store.
+	 * @return The shared seed index
+	 */
+	public synchronized OffTargetSeedIndex getSeedIndex() {
+		if (seedIndex == null) {
+			logger.info("Building seed index over " + numSites + " off target sites (" + ((long) numSites * OffTargetSeedIndex.BYTES_PER_SITE >> 20) + " MB) ... ");
+			seedIndex = new OffTargetSeedIndex(this);
+			logger.info("Complete.");
+		}
+		return seedIndex;
+	}
+
+	/**
+	 * @return The seed index if it has been built, otherwise null
+	 */
+	public synchronized OffTargetSeedIndex getSeedIndexIfBuilt() {
+		return seedIndex;
+	}
+
+}